@@ -1,3 +1,110 @@
+import evaluation.Evaluation;
+import metrics.RunReport;
+import metrics.StepMetrics;
+import services.EmrService;
+import services.S3Service;
+import software.amazon.awssdk.services.emr.model.StepSummary;
+import steps.GoldPairs;
+import steps.Pipeline;
+import steps.StageCache;
+import utils.Sampling;
+import utils.ShardInputFormat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
 public class Main {
 
+    /**
+     * Usage: Main &lt;jar&gt; &lt;biarcs input&gt; &lt;output dir&gt; &lt;logUri&gt; [instances] [sample fraction] [gold pairs]
+     * <p>
+     * With gold pairs given, the flow scores them and the classifier is cross validated on the
+     * scores once the flow is done; its metrics go to {@code <output dir>/evaluation/}.
+     */
+    public static void main(String[] args) throws InterruptedException, IOException {
+        String jar = args[0];
+        String logUri = args[3];
+        int instances = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+        // e.g. 0.01 to run an experiment on a deterministic 1% of the biarcs
+        String sampleFraction = args.length > 5 ? args[5] : "1";
+        String goldPairs = args.length > 6 ? args[6] : null;
+        // Scopes the metrics and the report of this flow within the shared logUri
+        String runId = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC).format(Instant.now())
+                + "-" + UUID.randomUUID().toString().substring(0, 8);
+
+        // The jar's ETag identifies the code version for the stage output cache
+        String[] jarLocation = bucketAndKey(jar);
+        String codeVersion = S3Service.create().getETag(jarLocation[0], jarLocation[1]);
+        String cacheUri = "s3://" + bucketAndKey(args[2])[0] + "/cache/";
+
+        EmrService emr = EmrService.create();
+        // All stages run as one job graph in a single step, so no stage waits for a new EMR step
+        List<String> stepArgs = new ArrayList<>(List.of(
+                "-D", StepMetrics.METRICS_DIR + "=" + RunReport.metricsDir(logUri, runId),
+                // One instance is the master, the rest run containers
+                "-D", ShardInputFormat.NODES + "=" + Math.max(1, instances - 1),
+                "-D", Sampling.FRACTION + "=" + sampleFraction));
+        // Without a code version a cached output could come from other code, so run uncached
+        if (codeVersion != null)
+            stepArgs.addAll(List.of(
+                    "-D", StageCache.CACHE_URI + "=" + cacheUri,
+                    "-D", StageCache.CODE_VERSION + "=" + codeVersion));
+        else
+            System.err.printf("No ETag for %s, running without the stage cache\n", jar);
+        if (goldPairs != null)
+            stepArgs.addAll(List.of("-D", GoldPairs.PAIRS + "=" + goldPairs));
+        stepArgs.addAll(List.of(args[1], args[2]));
+        emr.addStep("Pipeline", jar, "steps.Pipeline", stepArgs.toArray(new String[0]));
+        emr.runFlow(instances, "Syntactic similarities", logUri);
+
+        List<StepSummary> steps = emr.waitForCompletion(30);
+        RunReport.builder()
+                .logUri(logUri)
+                .runId(runId)
+                .steps(steps)
+                .build()
+                .publish();
+
+        if (goldPairs != null)
+            evaluate(args[2]);
+    }
+
+    /**
+     * Cross validates the classifier on the gold pair scores, found through the pipeline's stages.tsv
+     */
+    private static void evaluate(String outputDir) throws IOException {
+        S3Service s3 = S3Service.create();
+        String[] output = bucketAndKey(outputDir.endsWith("/") ? outputDir : outputDir + "/");
+        if (s3.getETag(output[0], output[1] + "stages.tsv") == null) {
+            System.err.println("Pipeline wrote no stages.tsv, skipping the evaluation");
+            return;
+        }
+        String stages = new String(s3.getObjectBytes(output[0], output[1] + "stages.tsv"), StandardCharsets.UTF_8);
+        for (String line : stages.split("\n")) {
+            String[] columns = line.split("\t");
+            if (!columns[0].equals(Pipeline.GOLD))
+                continue;
+            // The scores are under the output dir or in the cache, which lives in the same bucket
+            String[] scores = bucketAndKey(columns[1] + "/");
+            if (s3.getETag(scores[0], scores[1] + "_SUCCESS") == null) {
+                System.err.println("Gold pair scores are incomplete, skipping the evaluation");
+                return;
+            }
+            Evaluation.builder().s3(s3).build().run(scores[0], scores[1], output[1] + "evaluation/");
+        }
+    }
+
+    private static String[] bucketAndKey(String s3Uri) {
+        String path = s3Uri.substring(s3Uri.indexOf("://") + 3);
+        int separator = path.indexOf('/');
+        return separator < 0
+                ? new String[]{path, ""}
+                : new String[]{path.substring(0, separator), path.substring(separator + 1)};
+    }
 }
@@ -0,0 +1,235 @@
+package evaluation;
+
+import lombok.Builder;
+import services.S3Service;
+import utils.Similarity;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Trains a classifier on the 24 dimensional similarity vectors of the gold pairs and reports
+ * k-fold cross validated precision, recall and F1.
+ * <p>
+ * The pair vectors are streamed from every object under the input prefix, one pair per line:
+ * {@code w1 \t w2 \t True|False \t 24 scores}. The folds are trained in parallel on a fork-join
+ * pool, each fold writing the predictions of its own test pairs. The metrics and the per-pair
+ * predictions are uploaded next to each other under the output prefix.
+ */
+@Builder
+public class Evaluation {
+
+    @Builder.Default
+    S3Service s3 = S3Service.create();
+    @Builder.Default
+    int folds = 10;
+    @Builder.Default
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    @Builder.Default
+    long seed = 42;
+    @Builder.Default
+    int iterations = 500;
+    @Builder.Default
+    double learningRate = 0.1;
+    @Builder.Default
+    double regularization = 1e-4;
+
+    private static final double THRESHOLD = 0.5;
+
+    static class Pair {
+        String first;
+        String second;
+        boolean related;
+        double[] features;
+        double probability;
+        int fold;
+    }
+
+    /**
+     * Confusion matrix of the positive (related) class
+     */
+    static class Metrics {
+        long truePositives, falsePositives, falseNegatives, trueNegatives;
+
+        void add(boolean actual, boolean predicted) {
+            if (actual && predicted) truePositives++;
+            else if (predicted) falsePositives++;
+            else if (actual) falseNegatives++;
+            else trueNegatives++;
+        }
+
+        void add(Metrics other) {
+            truePositives += other.truePositives;
+            falsePositives += other.falsePositives;
+            falseNegatives += other.falseNegatives;
+            trueNegatives += other.trueNegatives;
+        }
+
+        double precision() {
+            return truePositives == 0 ? 0 : (double) truePositives / (truePositives + falsePositives);
+        }
+
+        double recall() {
+            return truePositives == 0 ? 0 : (double) truePositives / (truePositives + falseNegatives);
+        }
+
+        double f1() {
+            double p = precision(), r = recall();
+            return p + r == 0 ? 0 : 2 * p * r / (p + r);
+        }
+
+        String toJson() {
+            return String.format("{\"precision\":%.6f,\"recall\":%.6f,\"f1\":%.6f,\"tp\":%d,\"fp\":%d,\"fn\":%d,\"tn\":%d}",
+                    precision(), recall(), f1(), truePositives, falsePositives, falseNegatives, trueNegatives);
+        }
+    }
+
+    class FoldTask extends RecursiveTask<Metrics> {
+        private final List<Pair> pairs;
+        private final int fold;
+
+        FoldTask(List<Pair> pairs, int fold) {
+            this.pairs = pairs;
+            this.fold = fold;
+        }
+
+        @Override
+        protected Metrics compute() {
+            List<Pair> train = new ArrayList<>();
+            List<Pair> test = new ArrayList<>();
+            for (Pair pair : pairs)
+                (pair.fold == fold ? test : train).add(pair);
+
+            double[][] features = new double[train.size()][];
+            boolean[] labels = new boolean[train.size()];
+            for (int i = 0; i < train.size(); i++) {
+                features[i] = train.get(i).features;
+                labels[i] = train.get(i).related;
+            }
+            LogisticRegression classifier = new LogisticRegression(iterations, learningRate, regularization);
+            classifier.train(features, labels);
+
+            // Every pair is in exactly one test fold, so the folds never write the same pair
+            Metrics metrics = new Metrics();
+            for (Pair pair : test) {
+                pair.probability = classifier.predict(pair.features);
+                metrics.add(pair.related, pair.probability >= THRESHOLD);
+            }
+            return metrics;
+        }
+    }
+
+    List<Pair> read(String bucketName, String inputPrefix) throws IOException {
+        List<Pair> pairs = new ArrayList<>();
+        for (String key : s3.listObjects(bucketName, inputPrefix)) {
+            InputStream object = s3.getObject(bucketName, key);
+            if (object == null)
+                continue;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(object, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Pair pair = parse(line);
+                    if (pair != null)
+                        pairs.add(pair);
+                }
+            }
+        }
+        return pairs;
+    }
+
+    static Pair parse(String line) {
+        String[] columns = line.split("\t");
+        if (columns.length != 3 + Similarity.DIMENSIONS)
+            return null;
+        Pair pair = new Pair();
+        pair.first = columns[0];
+        pair.second = columns[1];
+        pair.related = Boolean.parseBoolean(columns[2]);
+        pair.features = new double[Similarity.DIMENSIONS];
+        try {
+            for (int i = 0; i < Similarity.DIMENSIONS; i++) {
+                double value = Double.parseDouble(columns[3 + i]);
+                pair.features[i] = Double.isFinite(value) ? value : 0;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return pair;
+    }
+
+    Metrics crossValidate(List<Pair> pairs) {
+        // Deterministic fold assignment so reruns are comparable
+        Collections.shuffle(pairs, new Random(seed));
+        for (int i = 0; i < pairs.size(); i++)
+            pairs.get(i).fold = i % folds;
+
+        List<FoldTask> tasks = new ArrayList<>();
+        for (int fold = 0; fold < folds; fold++)
+            tasks.add(new FoldTask(pairs, fold));
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        } finally {
+            pool.shutdown();
+        }
+
+        Metrics total = new Metrics();
+        for (FoldTask task : tasks)
+            total.add(task.join());
+        return total;
+    }
+
+    public void run(String bucketName, String inputPrefix, String outputPrefix) throws IOException {
+        List<Pair> pairs = read(bucketName, inputPrefix);
+        if (pairs.size() < folds) {
+            System.err.printf("Only %d pairs found under %s, need at least %d\n", pairs.size(), inputPrefix, folds);
+            return;
+        }
+        Metrics total = crossValidate(pairs);
+
+        StringBuilder metrics = new StringBuilder("{\"pairs\":").append(pairs.size())
+                .append(",\"folds\":").append(folds)
+                .append(",\"overall\":").append(total.toJson())
+                .append(",\"perFold\":[");
+        for (int fold = 0; fold < folds; fold++) {
+            Metrics foldMetrics = new Metrics();
+            for (Pair pair : pairs)
+                if (pair.fold == fold)
+                    foldMetrics.add(pair.related, pair.probability >= THRESHOLD);
+            metrics.append(fold == 0 ? "" : ",").append(foldMetrics.toJson());
+        }
+        metrics.append("]}");
+
+        StringBuilder predictions = new StringBuilder();
+        for (Pair pair : pairs)
+            predictions.append(pair.first).append('\t').append(pair.second).append('\t')
+                    .append(pair.related).append('\t').append(pair.probability >= THRESHOLD).append('\t')
+                    .append(pair.probability).append('\t').append(pair.fold).append('\n');
+
+        s3.putFile(metrics.toString().getBytes(StandardCharsets.UTF_8), bucketName, outputPrefix + "metrics.json");
+        s3.putFile(predictions.toString().getBytes(StandardCharsets.UTF_8), bucketName, outputPrefix + "predictions.tsv");
+        System.out.printf("Cross validation over %d pairs: precision %.4f recall %.4f F1 %.4f\n",
+                pairs.size(), total.precision(), total.recall(), total.f1());
+    }
+
+    /**
+     * Usage: Evaluation &lt;bucket&gt; &lt;input prefix&gt; &lt;output prefix&gt; [folds]
+     */
+    public static void main(String[] args) throws IOException {
+        Evaluation evaluation = Evaluation.builder()
+                .folds(args.length > 3 ? Integer.parseInt(args[3]) : 10)
+                .build();
+        evaluation.run(args[0], args[1], args[2]);
+    }
+}
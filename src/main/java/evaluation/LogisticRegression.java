@@ -0,0 +1,89 @@
+package evaluation;
+
+import java.util.Arrays;
+
+/**
+ * Binary logistic regression trained with full batch gradient descent.
+ * <p>
+ * Features are standardized with the mean and deviation of the training set, which
+ * matters here because the distance measures and the cosine/Jaccard scores live on
+ * very different scales.
+ */
+public class LogisticRegression {
+
+    private final int iterations;
+    private final double learningRate;
+    private final double regularization;
+
+    private double[] mean;
+    private double[] deviation;
+    private double[] weights;
+    private double bias;
+
+    public LogisticRegression(int iterations, double learningRate, double regularization) {
+        this.iterations = iterations;
+        this.learningRate = learningRate;
+        this.regularization = regularization;
+    }
+
+    public void train(double[][] features, boolean[] labels) {
+        int n = features.length;
+        int d = features[0].length;
+        mean = new double[d];
+        deviation = new double[d];
+        for (double[] row : features)
+            for (int j = 0; j < d; j++)
+                mean[j] += row[j] / n;
+        for (double[] row : features)
+            for (int j = 0; j < d; j++)
+                deviation[j] += (row[j] - mean[j]) * (row[j] - mean[j]) / n;
+        for (int j = 0; j < d; j++)
+            deviation[j] = deviation[j] == 0 ? 1 : Math.sqrt(deviation[j]);
+
+        double[][] x = new double[n][];
+        for (int i = 0; i < n; i++)
+            x[i] = standardize(features[i]);
+
+        weights = new double[d];
+        bias = 0;
+        double[] gradient = new double[d];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            Arrays.fill(gradient, 0);
+            double biasGradient = 0;
+            for (int i = 0; i < n; i++) {
+                double error = sigmoid(dot(x[i])) - (labels[i] ? 1 : 0);
+                for (int j = 0; j < d; j++)
+                    gradient[j] += error * x[i][j];
+                biasGradient += error;
+            }
+            for (int j = 0; j < d; j++)
+                weights[j] -= learningRate * (gradient[j] / n + regularization * weights[j]);
+            bias -= learningRate * biasGradient / n;
+        }
+    }
+
+    /**
+     * Probability that the pair is related
+     */
+    public double predict(double[] features) {
+        return sigmoid(dot(standardize(features)));
+    }
+
+    private double[] standardize(double[] row) {
+        double[] result = new double[row.length];
+        for (int j = 0; j < row.length; j++)
+            result[j] = (row[j] - mean[j]) / deviation[j];
+        return result;
+    }
+
+    private double dot(double[] x) {
+        double sum = bias;
+        for (int j = 0; j < x.length; j++)
+            sum += weights[j] * x[j];
+        return sum;
+    }
+
+    private static double sigmoid(double z) {
+        return 1 / (1 + Math.exp(-z));
+    }
+}
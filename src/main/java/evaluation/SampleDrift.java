@@ -0,0 +1,168 @@
+package evaluation;
+
+import lombok.Builder;
+import metrics.RunReport;
+import services.S3Service;
+import utils.Json;
+import utils.Similarity;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the gold pair vectors of sampled runs against a reference run, so the cheapest
+ * sample fraction that is still accurate can be picked.
+ * <p>
+ * For every sample it reports how many reference pairs it covers, and for each of the 24
+ * dimensions the mean absolute difference to the reference, that difference relative to the
+ * mean reference magnitude and the Pearson correlation over the shared pairs. The classifier
+ * is cross validated on the reference and on every sample with the same settings, and the
+ * F1 difference is reported next to it. The inputs have the format read by {@link Evaluation}.
+ * <p>
+ * A run can be given as {@code <prefix>,<metrics dir>}, with the {@link RunReport#metricsDir}
+ * of the run that produced it; its entry then also holds what that run cost (job time, shuffle
+ * bytes and CPU time summed over its jobs), so accuracy and cost can be traded off in one place.
+ */
+@Builder
+public class SampleDrift {
+
+    @Builder.Default
+    S3Service s3 = S3Service.create();
+    @Builder.Default
+    Evaluation evaluation = Evaluation.builder().build();
+
+    /**
+     * Differences of one dimension over the pairs present in both runs
+     */
+    static class DimensionDrift {
+        long pairs;
+        double absoluteError, referenceMagnitude;
+        double sumX, sumY, sumXX, sumYY, sumXY;
+
+        void add(double reference, double sample) {
+            pairs++;
+            absoluteError += Math.abs(sample - reference);
+            referenceMagnitude += Math.abs(reference);
+            sumX += reference;
+            sumY += sample;
+            sumXX += reference * reference;
+            sumYY += sample * sample;
+            sumXY += reference * sample;
+        }
+
+        double meanAbsoluteError() {
+            return pairs == 0 ? 0 : absoluteError / pairs;
+        }
+
+        double relativeError() {
+            return referenceMagnitude == 0 ? 0 : absoluteError / referenceMagnitude;
+        }
+
+        double correlation() {
+            double covariance = pairs * sumXY - sumX * sumY;
+            double variance = (pairs * sumXX - sumX * sumX) * (pairs * sumYY - sumY * sumY);
+            // Constant dimensions (e.g. all zero in both runs) count as perfectly correlated
+            return variance <= 0 ? 1 : covariance / Math.sqrt(variance);
+        }
+    }
+
+    static String pairKey(Evaluation.Pair pair) {
+        return pair.first + "\t" + pair.second;
+    }
+
+    /**
+     * The prefix of a "prefix[,metrics dir]" run argument
+     */
+    static String prefix(String run) {
+        int separator = run.indexOf(',');
+        return separator < 0 ? run : run.substring(0, separator);
+    }
+
+    /**
+     * The cost fields of a run's JSON entry, empty without a metrics dir
+     */
+    String costJson(String run) {
+        int separator = run.indexOf(',');
+        if (separator < 0)
+            return "";
+        String metricsDir = run.substring(separator + 1);
+        RunReport.Cost cost = RunReport.cost(s3, metricsDir);
+        System.out.printf("Run %s: %d jobs, %d s of job time, %d shuffle bytes, %d s of CPU\n",
+                prefix(run), cost.jobs, cost.durationMs / 1000, cost.shuffleBytes, cost.cpuMillis / 1000);
+        return ",\"cost\":{\"metricsDir\":" + Json.quote(metricsDir) + ",\"jobs\":" + cost.jobs
+                + ",\"durationMs\":" + cost.durationMs + ",\"shuffleBytes\":" + cost.shuffleBytes
+                + ",\"cpuMillis\":" + cost.cpuMillis + "}";
+    }
+
+    public void run(String bucketName, String referenceRun, List<String> sampleRuns, String outputPrefix) throws IOException {
+        String referencePrefix = prefix(referenceRun);
+        List<Evaluation.Pair> reference = evaluation.read(bucketName, referencePrefix);
+        Map<String, Evaluation.Pair> referenceByKey = new HashMap<>();
+        for (Evaluation.Pair pair : reference)
+            referenceByKey.put(pairKey(pair), pair);
+        if (reference.size() < evaluation.folds) {
+            System.err.printf("Only %d reference pairs found under %s, need at least %d\n", reference.size(), referencePrefix, evaluation.folds);
+            return;
+        }
+        double referenceF1 = evaluation.crossValidate(reference).f1();
+        System.out.printf("Reference %s: %d pairs, F1 %.4f\n", referencePrefix, reference.size(), referenceF1);
+
+        StringBuilder json = new StringBuilder("{\"reference\":{\"prefix\":").append(Json.quote(referencePrefix))
+                .append(",\"pairs\":").append(reference.size())
+                .append(",\"f1\":").append(String.format("%.6f", referenceF1))
+                .append(costJson(referenceRun))
+                .append("},\"samples\":[");
+        for (int s = 0; s < sampleRuns.size(); s++) {
+            String samplePrefix = prefix(sampleRuns.get(s));
+            List<Evaluation.Pair> sample = evaluation.read(bucketName, samplePrefix);
+
+            DimensionDrift[] drifts = new DimensionDrift[Similarity.DIMENSIONS];
+            for (int d = 0; d < drifts.length; d++)
+                drifts[d] = new DimensionDrift();
+            long shared = 0;
+            for (Evaluation.Pair pair : sample) {
+                Evaluation.Pair match = referenceByKey.get(pairKey(pair));
+                if (match == null)
+                    continue;
+                shared++;
+                for (int d = 0; d < drifts.length; d++)
+                    drifts[d].add(match.features[d], pair.features[d]);
+            }
+            double sampleF1 = sample.size() < evaluation.folds ? 0 : evaluation.crossValidate(sample).f1();
+            double coverage = reference.isEmpty() ? 0 : (double) shared / reference.size();
+
+            json.append(s == 0 ? "" : ",").append("{\"prefix\":").append(Json.quote(samplePrefix))
+                    .append(",\"pairs\":").append(sample.size())
+                    .append(",\"coverage\":").append(String.format("%.6f", coverage))
+                    .append(",\"f1\":").append(String.format("%.6f", sampleF1))
+                    .append(",\"f1Drift\":").append(String.format("%.6f", sampleF1 - referenceF1))
+                    .append(costJson(sampleRuns.get(s)))
+                    .append(",\"dimensions\":{");
+            double worstCorrelation = 1;
+            for (int d = 0; d < drifts.length; d++) {
+                DimensionDrift drift = drifts[d];
+                worstCorrelation = Math.min(worstCorrelation, drift.correlation());
+                json.append(d == 0 ? "" : ",").append(Json.quote(Similarity.dimensionName(d))).append(':')
+                        .append(String.format("{\"mae\":%.6g,\"relativeError\":%.6f,\"correlation\":%.6f}",
+                                drift.meanAbsoluteError(), drift.relativeError(), drift.correlation()));
+            }
+            json.append("}}");
+            System.out.printf("Sample %s: %d pairs, coverage %.4f, F1 %.4f (drift %+.4f), lowest dimension correlation %.4f\n",
+                    samplePrefix, sample.size(), coverage, sampleF1, sampleF1 - referenceF1, worstCorrelation);
+        }
+        json.append("]}");
+        s3.putFile(json.toString().getBytes(StandardCharsets.UTF_8), bucketName, outputPrefix + "drift.json");
+    }
+
+    /**
+     * Usage: SampleDrift &lt;bucket&gt; &lt;reference prefix[,metrics dir]&gt; &lt;output prefix&gt; &lt;sample prefix[,metrics dir]&gt;...
+     */
+    public static void main(String[] args) throws IOException {
+        SampleDrift.builder()
+                .build()
+                .run(args[0], args[1], List.of(args).subList(3, args.length), args[2]);
+    }
+}
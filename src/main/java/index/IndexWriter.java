@@ -0,0 +1,206 @@
+package index;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import utils.SparseVector;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes lexeme vectors into the on-disk index read by {@link SimilarityIndex}.
+ * <p>
+ * Layout: a fixed header, the sparse rows in arrival order, the candidate block if any
+ * candidates were added, then the dictionary block (lexemes sorted by their UTF-8 bytes, with
+ * the offset of each lexeme's row). The candidate block lists the LSH candidates of every row,
+ * in dictionary order: {@code count + 1} start offsets, then the candidates' row numbers.
+ * No row or block crosses a {@link SimilarityIndex#SEGMENT_SIZE} boundary, so the reader can
+ * map the file in segments and read every row from a single buffer.
+ * <p>
+ * Usage: {@code IndexWriter <vectors dir> <index file> [candidates dir]} exports the SequenceFile
+ * of (lexeme, {@link SparseVector}) written by the pipeline, locally or from S3, and the pairs
+ * found by {@link steps.LshCandidates} ({@code l1 \t l2 \t ..} lines).
+ */
+public class IndexWriter implements Closeable {
+
+    private final String fileName;
+    private final DataOutputStream out;
+    private final List<byte[]> names = new ArrayList<>();
+    private final List<Long> offsets = new ArrayList<>();
+    private final Map<String, Integer> rows = new HashMap<>();
+    // Both directions of every candidate pair, as arrival numbers
+    private int[] candidateRows = new int[1024];
+    private int[] candidateTargets = new int[1024];
+    private int candidates;
+    private long position;
+
+    public IndexWriter(String fileName) throws IOException {
+        this.fileName = fileName;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+        // The header is rewritten once the dictionary offset is known
+        out.write(new byte[SimilarityIndex.HEADER_SIZE]);
+        position = SimilarityIndex.HEADER_SIZE;
+    }
+
+    public void add(String lexeme, SparseVector vector) throws IOException {
+        long length = 4 + vector.size() * (4 + 8L * SparseVector.MEASURES);
+        align(length);
+        rows.put(lexeme, names.size());
+        names.add(lexeme.getBytes(StandardCharsets.UTF_8));
+        offsets.add(position);
+
+        out.writeInt(vector.size());
+        for (int i = 0; i < vector.size(); i++)
+            out.writeInt(vector.id(i));
+        for (int m = 0; m < SparseVector.MEASURES; m++)
+            for (int i = 0; i < vector.size(); i++)
+                out.writeDouble(vector.weight(m, i));
+        position += length;
+    }
+
+    /**
+     * Records a candidate pair of two lexemes added before; returns false if either one is unknown
+     */
+    public boolean addCandidate(String a, String b) {
+        Integer first = rows.get(a);
+        Integer second = rows.get(b);
+        if (first == null || second == null || first.equals(second))
+            return false;
+        if (candidates + 2 > candidateRows.length) {
+            candidateRows = Arrays.copyOf(candidateRows, 2 * candidateRows.length);
+            candidateTargets = Arrays.copyOf(candidateTargets, 2 * candidateTargets.length);
+        }
+        candidateRows[candidates] = first;
+        candidateTargets[candidates++] = second;
+        candidateRows[candidates] = second;
+        candidateTargets[candidates++] = first;
+        return true;
+    }
+
+    /**
+     * Pads the file so that a block of the given length starts and ends in the same segment
+     */
+    private void align(long length) throws IOException {
+        if (length > SimilarityIndex.SEGMENT_SIZE)
+            throw new IOException("Block of " + length + " bytes does not fit in a segment");
+        long segmentEnd = (position / SimilarityIndex.SEGMENT_SIZE + 1) * SimilarityIndex.SEGMENT_SIZE;
+        if (position + length > segmentEnd) {
+            out.write(new byte[(int) (segmentEnd - position)]);
+            position = segmentEnd;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Integer[] order = new Integer[names.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(names.get(a), names.get(b)));
+        int count = order.length;
+        long candidatesOffset = candidates > 0 ? writeCandidates(order) : 0;
+
+        // Dictionary block: name offsets, row offsets, then the name bytes
+        long namesLength = 0;
+        for (byte[] name : names)
+            namesLength += name.length;
+        long length = 4L * (count + 1) + 8L * count + namesLength;
+        align(length);
+        long dictionaryOffset = position;
+
+        int nameOffset = 0;
+        for (Integer i : order) {
+            out.writeInt(nameOffset);
+            nameOffset += names.get(i).length;
+        }
+        out.writeInt(nameOffset);
+        for (Integer i : order)
+            out.writeLong(offsets.get(i));
+        for (Integer i : order)
+            out.write(names.get(i));
+        out.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            file.writeInt(SimilarityIndex.MAGIC);
+            file.writeInt(count);
+            file.writeInt(SparseVector.MEASURES);
+            file.writeInt(SimilarityIndex.VERSION);
+            file.writeLong(dictionaryOffset);
+            file.writeLong(candidatesOffset);
+        }
+        System.out.printf("Wrote %d lexemes to index %s\n", count, fileName);
+    }
+
+    /**
+     * Candidate block in dictionary order, a counting sort of the pairs by their first row
+     */
+    private long writeCandidates(Integer[] order) throws IOException {
+        int count = order.length;
+        int[] rank = new int[count];
+        for (int i = 0; i < count; i++)
+            rank[order[i]] = i;
+        int[] starts = new int[count + 1];
+        for (int i = 0; i < candidates; i++)
+            starts[rank[candidateRows[i]] + 1]++;
+        for (int i = 0; i < count; i++)
+            starts[i + 1] += starts[i];
+        int[] targets = new int[candidates];
+        int[] next = Arrays.copyOf(starts, count);
+        for (int i = 0; i < candidates; i++)
+            targets[next[rank[candidateRows[i]]]++] = rank[candidateTargets[i]];
+
+        align(4L * (count + 1) + 4L * candidates);
+        long offset = position;
+        for (int start : starts)
+            out.writeInt(start);
+        for (int target : targets)
+            out.writeInt(target);
+        position += 4L * (count + 1) + 4L * candidates;
+        return offset;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        org.apache.hadoop.fs.Path vectors = new org.apache.hadoop.fs.Path(args[0]);
+        FileSystem fs = vectors.getFileSystem(conf);
+
+        try (IndexWriter writer = new IndexWriter(args[1])) {
+            for (FileStatus status : fs.globStatus(new org.apache.hadoop.fs.Path(vectors, "part-*"))) {
+                try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()))) {
+                    Text lexeme = new Text();
+                    SparseVector vector = new SparseVector();
+                    while (reader.next(lexeme, vector))
+                        writer.add(lexeme.toString(), vector);
+                }
+            }
+            if (args.length > 2) {
+                org.apache.hadoop.fs.Path candidates = new org.apache.hadoop.fs.Path(args[2]);
+                FileSystem candidatesFs = candidates.getFileSystem(conf);
+                for (FileStatus status : candidatesFs.globStatus(new org.apache.hadoop.fs.Path(candidates, "part-*"))) {
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(candidatesFs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            String[] columns = line.split("\t", 3);
+                            if (columns.length >= 2)
+                                writer.addCandidate(columns[0], columns[1]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
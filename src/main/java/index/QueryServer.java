@@ -0,0 +1,189 @@
+package index;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import utils.Json;
+import utils.Similarity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers similarity questions from a local {@link SimilarityIndex} instead of another EMR run.
+ * <p>
+ * Usage:
+ * <pre>
+ *   QueryServer &lt;index&gt; pair &lt;a&gt; &lt;b&gt;
+ *   QueryServer &lt;index&gt; top &lt;lexeme&gt; [k] [dimension]
+ *   QueryServer &lt;index&gt; serve [port] [threads] [bind address]
+ * </pre>
+ * The server only listens on the loopback interface unless a bind address is given
+ * (e.g. {@code 0.0.0.0} for every interface); it has no authentication. It exposes {@code GET /similarity?a=..&b=..} and {@code GET /top?lexeme=..&k=..&dimension=..}
+ * and answers with JSON. Requests run on a fixed size pool with a bounded queue; when the queue
+ * is full the accepting thread runs the request itself, which slows down new connections
+ * instead of letting the backlog grow without limit.
+ */
+public class QueryServer {
+
+    private static final int DEFAULT_K = 10;
+    // pmi-cosine
+    private static final int DEFAULT_DIMENSION = 2 * Similarity.MEASURES.length + 2;
+
+    private final SimilarityIndex index;
+
+    public QueryServer(SimilarityIndex index) {
+        this.index = index;
+    }
+
+    public String pair(String a, String b) {
+        double[] scores = index.similarity(a, b);
+        if (scores == null)
+            return null;
+        StringBuilder json = new StringBuilder("{\"a\":").append(Json.quote(a)).append(",\"b\":").append(Json.quote(b)).append(",\"scores\":{");
+        for (int i = 0; i < scores.length; i++) {
+            if (i > 0)
+                json.append(',');
+            json.append(Json.quote(Similarity.dimensionName(i))).append(':').append(scores[i]);
+        }
+        return json.append("}}").toString();
+    }
+
+    public String top(String lexeme, int k, int dimension) {
+        List<SimilarityIndex.Match> matches = index.top(lexeme, k, dimension);
+        StringBuilder json = new StringBuilder("{\"lexeme\":").append(Json.quote(lexeme))
+                .append(",\"dimension\":").append(Json.quote(Similarity.dimensionName(dimension))).append(",\"matches\":[");
+        for (int i = 0; i < matches.size(); i++) {
+            if (i > 0)
+                json.append(',');
+            json.append("{\"lexeme\":").append(Json.quote(matches.get(i).lexeme))
+                    .append(",\"score\":").append(matches.get(i).score).append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String error(Exception e) {
+        return "{\"error\":" + Json.quote(String.valueOf(e.getMessage())) + "}";
+    }
+
+    public HttpServer serve(int port, int threads) throws IOException {
+        return serve(InetAddress.getLoopbackAddress(), port, threads);
+    }
+
+    public HttpServer serve(InetAddress address, int port, int threads) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.setExecutor(new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 16),
+                new ThreadPoolExecutor.CallerRunsPolicy()));
+
+        server.createContext("/similarity", exchange -> {
+            Map<String, String> params = params(exchange);
+            String a = params.get("a");
+            String b = params.get("b");
+            if (a == null || b == null) {
+                respond(exchange, 400, "{\"error\":\"a and b are required\"}");
+                return;
+            }
+            try {
+                String body = pair(a, b);
+                if (body == null)
+                    respond(exchange, 404, "{\"error\":\"unknown lexeme\"}");
+                else
+                    respond(exchange, 200, body);
+            } catch (RuntimeException e) {
+                respond(exchange, 500, error(e));
+            }
+        });
+
+        server.createContext("/top", exchange -> {
+            Map<String, String> params = params(exchange);
+            String lexeme = params.get("lexeme");
+            if (lexeme == null) {
+                respond(exchange, 400, "{\"error\":\"lexeme is required\"}");
+                return;
+            }
+            try {
+                int k = Integer.parseInt(params.getOrDefault("k", String.valueOf(DEFAULT_K)));
+                int dimension = Integer.parseInt(params.getOrDefault("dimension", String.valueOf(DEFAULT_DIMENSION)));
+                if (dimension < 0 || dimension >= Similarity.DIMENSIONS)
+                    throw new NumberFormatException("dimension out of range");
+                if (k < 1)
+                    throw new NumberFormatException("k must be positive");
+                respond(exchange, 200, top(lexeme, k, dimension));
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, error(e));
+            } catch (RuntimeException e) {
+                // Otherwise the exchange is dropped without a response and the client hangs
+                respond(exchange, 500, error(e));
+            }
+        });
+
+        server.start();
+        System.out.printf("Serving %d lexemes on %s:%d with %d threads\n", index.size(), address.getHostAddress(), port, threads);
+        return server;
+    }
+
+    private static Map<String, String> params(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null)
+            return params;
+        for (String param : query.split("&")) {
+            int separator = param.indexOf('=');
+            if (separator > 0)
+                params.put(URLDecoder.decode(param.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(param.substring(separator + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        SimilarityIndex index = SimilarityIndex.open(Paths.get(args[0]));
+        QueryServer server = new QueryServer(index);
+        switch (args[1]) {
+            case "pair":
+                String body = server.pair(args[2], args[3]);
+                System.out.println(body == null ? "Unknown lexeme" : body);
+                break;
+            case "top":
+                int k = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_K;
+                int dimension = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_DIMENSION;
+                if (dimension < 0 || dimension >= Similarity.DIMENSIONS) {
+                    System.err.printf("Dimension must be in [0, %d), got %d\n", Similarity.DIMENSIONS, dimension);
+                    System.exit(1);
+                }
+                System.out.println(server.top(args[2], k, dimension));
+                break;
+            case "serve":
+                int port = args.length > 2 ? Integer.parseInt(args[2]) : 8080;
+                int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+                InetAddress address = args.length > 4 ? InetAddress.getByName(args[4]) : InetAddress.getLoopbackAddress();
+                server.serve(address, port, threads);
+                return;
+            default:
+                System.err.println("Unknown command " + args[1]);
+                System.exit(1);
+        }
+        index.close();
+    }
+}
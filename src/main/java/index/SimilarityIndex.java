@@ -0,0 +1,263 @@
+package index;
+
+import utils.FeatureVector;
+import utils.Similarity;
+import utils.SparseVector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Read-only, memory-mapped view of an index written by {@link IndexWriter}.
+ * <p>
+ * Only absolute reads are made on the mapped buffers, so one instance can serve
+ * queries from many threads at once.
+ * <p>
+ * When the index holds LSH candidates, {@link #top} only scores a lexeme's candidates, so a
+ * query reads the rows of its candidates instead of every row. It scans every row for
+ * indexes written without candidates and for lexemes that have none, e.g. the stop-word like
+ * lexemes whose buckets the LSH stage skips.
+ */
+public class SimilarityIndex implements Closeable {
+
+    static final int MAGIC = 0x53494458;
+    // Version 0 indexes have no candidate block and a 24 byte header
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final int count;
+    private final MappedByteBuffer dictionary;
+    private final int dictionaryStart;
+    private final int rowOffsetsStart;
+    private final int namesStart;
+    // Null if the index has no candidate block
+    private final MappedByteBuffer candidates;
+    private final int candidatesStart;
+
+    public static class Match {
+        public final String lexeme;
+        public final double score;
+
+        Match(String lexeme, double score) {
+            this.lexeme = lexeme;
+            this.score = score;
+        }
+    }
+
+    public static SimilarityIndex open(Path file) throws IOException {
+        return new SimilarityIndex(FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    private SimilarityIndex(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long size = channel.size();
+        segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        for (int i = 0; i < segments.length; i++) {
+            long start = i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+
+        MappedByteBuffer header = segments[0];
+        if (header.getInt(0) != MAGIC)
+            throw new IOException("Not a similarity index");
+        if (header.getInt(8) != SparseVector.MEASURES)
+            throw new IOException("Index was written with " + header.getInt(8) + " association measures");
+        if (header.getInt(12) > VERSION)
+            throw new IOException("Index version " + header.getInt(12) + " is newer than this reader");
+        count = header.getInt(4);
+        long dictionaryOffset = header.getLong(16);
+        long candidatesOffset = header.getInt(12) >= 1 ? header.getLong(24) : 0;
+        candidates = candidatesOffset == 0 ? null : segments[(int) (candidatesOffset / SEGMENT_SIZE)];
+        candidatesStart = (int) (candidatesOffset % SEGMENT_SIZE);
+        dictionary = segments[(int) (dictionaryOffset / SEGMENT_SIZE)];
+        dictionaryStart = (int) (dictionaryOffset % SEGMENT_SIZE);
+        rowOffsetsStart = dictionaryStart + 4 * (count + 1);
+        namesStart = rowOffsetsStart + 8 * count;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String lexeme(int index) {
+        int start = dictionary.getInt(dictionaryStart + 4 * index);
+        int end = dictionary.getInt(dictionaryStart + 4 * (index + 1));
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = dictionary.get(namesStart + start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Binary search over the sorted dictionary, returns -1 for unknown lexemes
+     */
+    public int find(String lexeme) {
+        byte[] key = lexeme.getBytes(StandardCharsets.UTF_8);
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(mid, key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private int compareName(int index, byte[] key) {
+        int start = namesStart + dictionary.getInt(dictionaryStart + 4 * index);
+        int length = namesStart + dictionary.getInt(dictionaryStart + 4 * (index + 1)) - start;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int cmp = Byte.toUnsignedInt(dictionary.get(start + i)) - Byte.toUnsignedInt(key[i]);
+            if (cmp != 0)
+                return cmp;
+        }
+        return length - key.length;
+    }
+
+    /**
+     * A row read in place from the mapped file; {@link #moveTo} points it at another row,
+     * so scanning the whole index does not allocate a vector per row
+     */
+    private class MappedRow implements FeatureVector {
+        private MappedByteBuffer segment;
+        private int idsStart;
+        private int size;
+
+        MappedRow moveTo(int index) {
+            long offset = dictionary.getLong(rowOffsetsStart + 8 * index);
+            segment = segments[(int) (offset / SEGMENT_SIZE)];
+            int position = (int) (offset % SEGMENT_SIZE);
+            size = segment.getInt(position);
+            idsStart = position + 4;
+            return this;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Cursor cursor(int measure) {
+            // Ids, then the weights of every measure in turn, as written by IndexWriter
+            int weightsStart = idsStart + 4 * size + 8 * size * measure;
+            return new Cursor() {
+                private int i = -1;
+
+                @Override
+                public boolean next() {
+                    return ++i < size;
+                }
+
+                @Override
+                public int id() {
+                    return segment.getInt(idsStart + 4 * i);
+                }
+
+                @Override
+                public double weight() {
+                    return segment.getDouble(weightsStart + 8 * i);
+                }
+            };
+        }
+    }
+
+    public SparseVector vector(int index) {
+        long offset = dictionary.getLong(rowOffsetsStart + 8 * index);
+        MappedByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+        int position = (int) (offset % SEGMENT_SIZE);
+
+        int size = segment.getInt(position);
+        position += 4;
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++, position += 4)
+            ids[i] = segment.getInt(position);
+        double[][] weights = new double[SparseVector.MEASURES][size];
+        for (int m = 0; m < SparseVector.MEASURES; m++)
+            for (int i = 0; i < size; i++, position += 8)
+                weights[m][i] = segment.getDouble(position);
+        return new SparseVector(ids, weights);
+    }
+
+    /**
+     * The 24 similarity scores of a pair, or null if either lexeme is not in the index
+     */
+    public double[] similarity(String a, String b) {
+        int i = find(a);
+        int j = find(b);
+        if (i < 0 || j < 0)
+            return null;
+        return Similarity.vector(vector(i), vector(j));
+    }
+
+    /**
+     * The k lexemes closest to the given one on a single dimension of the 24, best first, among
+     * its LSH candidates if the index has any for it; k is capped at the number of other lexemes
+     */
+    public List<Match> top(String lexeme, int k, int dimension) {
+        if (dimension < 0 || dimension >= Similarity.DIMENSIONS)
+            throw new IllegalArgumentException("dimension must be in [0, " + Similarity.DIMENSIONS + "), got " + dimension);
+        List<Match> result = new ArrayList<>();
+        int target = find(lexeme);
+        k = Math.min(k, count - 1);
+        if (target < 0 || k <= 0)
+            return result;
+
+        int association = dimension / Similarity.MEASURES.length;
+        int measure = dimension % Similarity.MEASURES.length;
+        // Distances rank ascending, similarities descending; the heap keeps the worst on top
+        double sign = Similarity.isDistance(measure) ? -1 : 1;
+        PriorityQueue<Match> heap = new PriorityQueue<>(k + 1, (x, y) -> Double.compare(sign * x.score, sign * y.score));
+
+        SparseVector query = vector(target);
+        MappedRow row = new MappedRow();
+        double[] scores = new double[Similarity.MEASURES.length];
+        // Either the target's slice of the candidate block or every row
+        int first = 0, last = count;
+        boolean restricted = false;
+        if (candidates != null) {
+            int start = candidates.getInt(candidatesStart + 4 * target);
+            int end = candidates.getInt(candidatesStart + 4 * (target + 1));
+            if (end > start) {
+                first = start;
+                last = end;
+                restricted = true;
+            }
+        }
+        int targetsStart = candidatesStart + 4 * (count + 1);
+        for (int c = first; c < last; c++) {
+            int i = restricted ? candidates.getInt(targetsStart + 4 * c) : c;
+            if (i == target)
+                continue;
+            Similarity.score(query, row.moveTo(i), association, scores, 0);
+            if (heap.size() < k || sign * scores[measure] > sign * heap.peek().score) {
+                heap.add(new Match(lexeme(i), scores[measure]));
+                if (heap.size() > k)
+                    heap.poll();
+            }
+        }
+        while (!heap.isEmpty())
+            result.add(0, heap.poll());
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,22 @@
+package metrics;
+
+/**
+ * Custom Hadoop counters incremented by the mappers and reducers of every step.
+ * They end up next to the built-in task counters in the step metrics and the run report.
+ */
+public enum PipelineCounter {
+    RECORDS_PARSED,
+    RECORDS_FILTERED,
+    RECORDS_SAMPLED_OUT,
+    LEXEME_FEATURE_PAIRS,
+    STEM_CACHE_HITS,
+    STEM_CACHE_MISSES,
+    VECTORS,
+    VECTOR_FEATURES,
+    VECTOR_SPILLS,
+    VECTORS_PRUNED,
+    FEATURES_PRUNED,
+    SAMPLED_KEYS,
+    PAIRS_SCORED,
+    BUCKETS_SKIPPED
+}
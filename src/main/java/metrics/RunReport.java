@@ -0,0 +1,252 @@
+package metrics;
+
+import lombok.Builder;
+import services.S3Service;
+import software.amazon.awssdk.services.emr.model.StepSummary;
+import software.amazon.awssdk.services.emr.model.StepTimeline;
+import utils.Json;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the per-job files written by {@link StepMetrics} together with the EMR step
+ * timeline and publishes a run report as {@code report.json} and {@code report.html}
+ * next to the flow's logs, including the settings the job tuner chose for every job.
+ * Every flow gets its own directory {@code <logUri>/metrics/<run id>/}, so flows sharing
+ * a logUri do not see each other's metrics, and the report sits next to them.
+ */
+@Builder
+public class RunReport {
+
+    private static final String TASK_COUNTER = "org.apache.hadoop.mapreduce.TaskCounter";
+    private static final String PIPELINE_COUNTER = PipelineCounter.class.getName();
+
+    // Counters shown in the summary table of every job: label, group, name
+    private static final String[][] HIGHLIGHTS = {
+            {"Map input records", TASK_COUNTER, "MAP_INPUT_RECORDS"},
+            {"Map output bytes", TASK_COUNTER, "MAP_OUTPUT_MATERIALIZED_BYTES"},
+            {"Shuffle bytes", TASK_COUNTER, "REDUCE_SHUFFLE_BYTES"},
+            {"Spilled records", TASK_COUNTER, "SPILLED_RECORDS"},
+            {"GC time (ms)", TASK_COUNTER, "GC_TIME_MILLIS"},
+            {"CPU time (ms)", TASK_COUNTER, "CPU_MILLISECONDS"},
+            {"Records parsed", PIPELINE_COUNTER, PipelineCounter.RECORDS_PARSED.name()},
+            {"Records filtered", PIPELINE_COUNTER, PipelineCounter.RECORDS_FILTERED.name()},
+            {"Records sampled out", PIPELINE_COUNTER, PipelineCounter.RECORDS_SAMPLED_OUT.name()},
+            {"Vectors", PIPELINE_COUNTER, PipelineCounter.VECTORS.name()},
+            {"Vector spills", PIPELINE_COUNTER, PipelineCounter.VECTOR_SPILLS.name()},
+            {"Vectors pruned", PIPELINE_COUNTER, PipelineCounter.VECTORS_PRUNED.name()},
+            {"Pairs scored", PIPELINE_COUNTER, PipelineCounter.PAIRS_SCORED.name()},
+    };
+
+    @Builder.Default
+    S3Service s3 = S3Service.create();
+    String logUri;
+    String runId;
+    @Builder.Default
+    List<StepSummary> steps = new ArrayList<>();
+
+    static class JobMetrics {
+        final Map<String, String> fields = new LinkedHashMap<>();
+        final Map<String, Map<String, Long>> counters = new LinkedHashMap<>();
+        final Map<String, String> settings = new LinkedHashMap<>();
+
+        long counter(String group, String name) {
+            return counters.getOrDefault(group, Map.of()).getOrDefault(name, 0L);
+        }
+
+        double stemCacheHitRate() {
+            long hits = counter(PIPELINE_COUNTER, PipelineCounter.STEM_CACHE_HITS.name());
+            long misses = counter(PIPELINE_COUNTER, PipelineCounter.STEM_CACHE_MISSES.name());
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        double averageVectorSize() {
+            long vectors = counter(PIPELINE_COUNTER, PipelineCounter.VECTORS.name());
+            return vectors == 0 ? 0 : (double) counter(PIPELINE_COUNTER, PipelineCounter.VECTOR_FEATURES.name()) / vectors;
+        }
+    }
+
+    /**
+     * What the jobs of one run cost together; the jobs of a graph overlap, so their
+     * durations add up to more than the run's wall time
+     */
+    public static class Cost {
+        public long jobs;
+        public long durationMs;
+        public long shuffleBytes;
+        public long cpuMillis;
+    }
+
+    /**
+     * The directory the steps of one run should be given as -D metrics.dir for a flow logging to logUri
+     */
+    public static String metricsDir(String logUri, String runId) {
+        return (logUri.endsWith("/") ? logUri : logUri + "/") + "metrics/" + runId + "/";
+    }
+
+    private static String bucket(String metricsDir) {
+        String path = metricsDir.substring(metricsDir.indexOf("://") + 3);
+        return path.substring(0, path.indexOf('/'));
+    }
+
+    private static String prefix(String metricsDir) {
+        String path = metricsDir.substring(metricsDir.indexOf("://") + 3);
+        String prefix = path.substring(path.indexOf('/') + 1);
+        return prefix.endsWith("/") ? prefix : prefix + "/";
+    }
+
+    private String bucket() {
+        return bucket(metricsDir(logUri, runId));
+    }
+
+    private String prefix() {
+        return prefix(metricsDir(logUri, runId));
+    }
+
+    /**
+     * Sums the duration, shuffle bytes and CPU time of the jobs under a metrics dir ({@code s3://bucket/prefix/})
+     */
+    public static Cost cost(S3Service s3, String metricsDir) {
+        Cost cost = new Cost();
+        for (JobMetrics job : readJobs(s3, metricsDir)) {
+            cost.jobs++;
+            cost.durationMs += Long.parseLong(job.fields.getOrDefault("durationMs", "0"));
+            cost.shuffleBytes += job.counter(TASK_COUNTER, "REDUCE_SHUFFLE_BYTES");
+            cost.cpuMillis += job.counter(TASK_COUNTER, "CPU_MILLISECONDS");
+        }
+        return cost;
+    }
+
+    List<JobMetrics> readJobs() {
+        return readJobs(s3, metricsDir(logUri, runId));
+    }
+
+    static List<JobMetrics> readJobs(S3Service s3, String metricsDir) {
+        String bucket = bucket(metricsDir);
+        List<JobMetrics> jobs = new ArrayList<>();
+        for (String key : s3.listObjects(bucket, prefix(metricsDir))) {
+            if (!key.endsWith(".tsv"))
+                continue;
+            JobMetrics job = new JobMetrics();
+            String tsv = new String(s3.getObjectBytes(bucket, key), StandardCharsets.UTF_8);
+            for (String line : tsv.split("\n")) {
+                String[] columns = line.split("\t");
+                if (columns[0].equals("setting") && columns.length >= 2)
+                    job.settings.put(columns[1], columns.length > 2 ? columns[2] : "");
+                else if (columns[0].equals("counter") && columns.length == 4)
+                    job.counters.computeIfAbsent(columns[1], group -> new LinkedHashMap<>())
+                            .put(columns[2], Long.parseLong(columns[3]));
+                else if (columns.length == 2)
+                    job.fields.put(columns[0], columns[1]);
+            }
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    private static long duration(StepTimeline timeline) {
+        if (timeline == null || timeline.startDateTime() == null || timeline.endDateTime() == null)
+            return 0;
+        return Duration.between(timeline.startDateTime(), timeline.endDateTime()).toMillis();
+    }
+
+    String toJson(List<JobMetrics> jobs) {
+        StringBuilder json = new StringBuilder("{\"logUri\":").append(Json.quote(logUri))
+                .append(",\"runId\":").append(Json.quote(runId)).append(",\"steps\":[");
+        for (int i = 0; i < steps.size(); i++) {
+            StepSummary step = steps.get(i);
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"name\":").append(Json.quote(step.name()))
+                    .append(",\"state\":").append(Json.quote(String.valueOf(step.status().state())))
+                    .append(",\"durationMs\":").append(duration(step.status().timeline())).append('}');
+        }
+        json.append("],\"jobs\":[");
+        for (int i = 0; i < jobs.size(); i++) {
+            JobMetrics job = jobs.get(i);
+            json.append(i == 0 ? "{" : ",{");
+            for (Map.Entry<String, String> field : job.fields.entrySet())
+                json.append(Json.quote(field.getKey())).append(':').append(Json.quote(field.getValue())).append(',');
+            json.append("\"stemCacheHitRate\":").append(job.stemCacheHitRate())
+                    .append(",\"averageVectorSize\":").append(job.averageVectorSize())
+                    .append(",\"settings\":{");
+            int s = 0;
+            for (Map.Entry<String, String> setting : job.settings.entrySet())
+                json.append(s++ == 0 ? "" : ",").append(Json.quote(setting.getKey())).append(':').append(Json.quote(setting.getValue()));
+            json.append("},\"counters\":{");
+            int g = 0;
+            for (Map.Entry<String, Map<String, Long>> group : job.counters.entrySet()) {
+                json.append(g++ == 0 ? "" : ",").append(Json.quote(group.getKey())).append(":{");
+                int c = 0;
+                for (Map.Entry<String, Long> counter : group.getValue().entrySet())
+                    json.append(c++ == 0 ? "" : ",").append(Json.quote(counter.getKey())).append(':').append(counter.getValue());
+                json.append('}');
+            }
+            json.append("}}");
+        }
+        return json.append("]}").toString();
+    }
+
+    String toHtml(List<JobMetrics> jobs) {
+        StringBuilder html = new StringBuilder("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>Run report</title>")
+                .append("<style>body{font-family:sans-serif}table{border-collapse:collapse;margin-bottom:2em}")
+                .append("td,th{border:1px solid #ccc;padding:4px 8px;text-align:right}th:first-child,td:first-child{text-align:left}</style>")
+                .append("</head><body><h1>Run report</h1><p>").append(escape(logUri)).append("</p>");
+
+        html.append("<h2>Steps</h2><table><tr><th>Step</th><th>State</th><th>Duration (s)</th></tr>");
+        for (StepSummary step : steps)
+            html.append("<tr><td>").append(escape(step.name())).append("</td><td>").append(step.status().state())
+                    .append("</td><td>").append(duration(step.status().timeline()) / 1000).append("</td></tr>");
+        html.append("</table>");
+
+        html.append("<h2>Jobs</h2><table><tr><th>Job</th><th>Duration (s)</th>");
+        for (String[] highlight : HIGHLIGHTS)
+            html.append("<th>").append(highlight[0]).append("</th>");
+        html.append("<th>Stem cache hit rate</th><th>Average vector size</th></tr>");
+        for (JobMetrics job : jobs) {
+            html.append("<tr><td>").append(escape(job.fields.getOrDefault("job", "?"))).append("</td><td>")
+                    .append(Long.parseLong(job.fields.getOrDefault("durationMs", "0")) / 1000).append("</td>");
+            for (String[] highlight : HIGHLIGHTS)
+                html.append("<td>").append(job.counter(highlight[1], highlight[2])).append("</td>");
+            html.append(String.format("<td>%.3f</td><td>%.1f</td></tr>", job.stemCacheHitRate(), job.averageVectorSize()));
+        }
+        html.append("</table>");
+
+        // Settings chosen per job by the tuner, one column per key used by any job
+        Set<String> keys = new LinkedHashSet<>();
+        for (JobMetrics job : jobs)
+            keys.addAll(job.settings.keySet());
+        if (!keys.isEmpty()) {
+            html.append("<h2>Job settings</h2><table><tr><th>Job</th>");
+            for (String key : keys)
+                html.append("<th>").append(escape(key)).append("</th>");
+            html.append("</tr>");
+            for (JobMetrics job : jobs) {
+                html.append("<tr><td>").append(escape(job.fields.getOrDefault("job", "?"))).append("</td>");
+                for (String key : keys)
+                    html.append("<td>").append(escape(job.settings.getOrDefault(key, ""))).append("</td>");
+                html.append("</tr>");
+            }
+            html.append("</table>");
+        }
+        return html.append("</body></html>").toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    public void publish() {
+        List<JobMetrics> jobs = readJobs();
+        s3.putFile(toJson(jobs).getBytes(StandardCharsets.UTF_8), bucket(), prefix() + "report.json");
+        s3.putFile(toHtml(jobs).getBytes(StandardCharsets.UTF_8), bucket(), prefix() + "report.html");
+        System.out.printf("Published run report for %d steps and %d jobs to %sreport.html\n",
+                steps.size(), jobs.size(), metricsDir(logUri, runId));
+    }
+}
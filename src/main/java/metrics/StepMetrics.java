@@ -0,0 +1,77 @@
+package metrics;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs a step's job and records its duration and all of its counters.
+ * <p>
+ * When {@code metrics.dir} is set (normally to a prefix under the flow's logUri) a small
+ * TSV file per job is written there, which {@link RunReport} collects once the flow is done:
+ * <pre>
+ *   job \t name
+ *   id \t job id
+ *   succeeded \t true|false
+ *   durationMs \t millis
+ *   counter \t group \t name \t value
+ *   setting \t key \t value
+ * </pre>
+ * The settings are the configuration keys listed in {@code metrics.settings}, e.g. the ones
+ * chosen by the job tuner.
+ */
+public class StepMetrics {
+
+    public static final String METRICS_DIR = "metrics.dir";
+    public static final String SETTINGS = "metrics.settings";
+
+    private StepMetrics() {
+    }
+
+    /**
+     * Waits for the job like {@link Job#waitForCompletion}, then publishes its metrics
+     */
+    public static boolean run(Job job) throws IOException, InterruptedException, ClassNotFoundException {
+        long start = System.currentTimeMillis();
+        boolean succeeded = job.waitForCompletion(true);
+        long duration = System.currentTimeMillis() - start;
+        publish(job, succeeded, duration);
+        return succeeded;
+    }
+
+    public static void publish(Job job, boolean succeeded, long duration) throws IOException {
+        Configuration conf = job.getConfiguration();
+        String dir = conf.get(METRICS_DIR);
+        if (dir == null)
+            return;
+
+        StringBuilder tsv = new StringBuilder()
+                .append("job\t").append(job.getJobName()).append('\n')
+                .append("id\t").append(job.getJobID()).append('\n')
+                .append("succeeded\t").append(succeeded).append('\n')
+                .append("durationMs\t").append(duration).append('\n');
+        Counters counters = job.getCounters();
+        if (counters != null) {
+            for (CounterGroup group : counters)
+                for (Counter counter : group)
+                    tsv.append("counter\t").append(group.getName()).append('\t')
+                            .append(counter.getName()).append('\t').append(counter.getValue()).append('\n');
+        }
+        for (String key : conf.getTrimmedStringCollection(SETTINGS))
+            tsv.append("setting\t").append(key).append('\t').append(conf.get(key, "")).append('\n');
+
+        Path file = new Path(dir, job.getJobName().replaceAll("[^A-Za-z0-9]+", "-") + ".tsv");
+        FileSystem fs = file.getFileSystem(conf);
+        try (FSDataOutputStream out = fs.create(file, true)) {
+            out.write(tsv.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -8,6 +8,7 @@ import software.amazon.awssdk.services.emr.EmrClient;
 import software.amazon.awssdk.services.emr.model.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 @Builder
@@ -52,7 +53,7 @@ public class EmrService {
 
     public void runFlow(int instanceCount, String flowName, String logUri) {
         // Run the flow on EMR
-        RunJobFlowResponse runJobFlowResponse = emr.runJobFlow(
+        runJobFlowResponse = emr.runJobFlow(
                 RunJobFlowRequest.builder()
                         .name(flowName)
                         .logUri(logUri)
@@ -74,9 +75,35 @@ public class EmrService {
                         .build()
         );
         String jobFlowId = runJobFlowResponse.jobFlowId();
-        System.out.println("Running the following job flow: %s with the following id: %d" + flowName + jobFlowId);
+        System.out.printf("Running the following job flow: %s with the following id: %s\n", flowName, jobFlowId);
         System.out.println("Running the following steps:");
-        steps.forEach(step -> System.out.println(step.name() + '\n'));
+        steps.forEach(step -> System.out.println(step.name()));
+    }
+
+    public String getJobFlowId() {
+        return runJobFlowResponse == null ? null : runJobFlowResponse.jobFlowId();
+    }
+
+    /**
+     * Blocks until the flow started by runFlow has terminated, then returns its steps in execution order
+     */
+    public List<StepSummary> waitForCompletion(int pollSeconds) throws InterruptedException {
+        String jobFlowId = getJobFlowId();
+        ClusterState state;
+        do {
+            Thread.sleep(pollSeconds * 1000L);
+            state = emr.describeCluster(DescribeClusterRequest.builder().clusterId(jobFlowId).build())
+                    .cluster().status().state();
+        } while (state != ClusterState.TERMINATED && state != ClusterState.TERMINATED_WITH_ERRORS);
+        System.out.printf("Job flow %s finished in state %s\n", jobFlowId, state);
+
+        // EMR lists the most recent step first
+        List<StepSummary> summaries = new ArrayList<>();
+        emr.listStepsPaginator(ListStepsRequest.builder().clusterId(jobFlowId).build())
+                .steps()
+                .forEach(summaries::add);
+        Collections.reverse(summaries);
+        return summaries;
     }
 
 }
@@ -221,6 +221,70 @@ public class S3Service {
         return null;
     }
 
+    // Returns the keys of all objects under the given prefix, following pagination
+    public List<String> listObjects(String bucketName, String prefix) {
+        List<String> keys = new ArrayList<>();
+        for (S3Object s3Object : listObjectSummaries(bucketName, prefix))
+            keys.add(s3Object.key());
+        return keys;
+    }
+
+    // Returns all objects under the given prefix with their size and modification time
+    public List<S3Object> listObjectSummaries(String bucketName, String prefix) {
+        List<S3Object> objects = new ArrayList<>();
+        try {
+            ListObjectsV2Request listObjectsV2Request = ListObjectsV2Request.builder()
+                    .bucket(bucketName)
+                    .prefix(prefix)
+                    .build();
+            ListObjectsV2Response listObjectsV2Response;
+
+            do {
+                listObjectsV2Response = s3.listObjectsV2(listObjectsV2Request);
+                objects.addAll(listObjectsV2Response.contents());
+
+                listObjectsV2Request = ListObjectsV2Request.builder()
+                        .bucket(bucketName)
+                        .prefix(prefix)
+                        .continuationToken(listObjectsV2Response.nextContinuationToken())
+                        .build();
+
+            } while (listObjectsV2Response.isTruncated());
+
+        } catch (S3Exception e) {
+            System.err.println(e.awsErrorDetails().errorMessage());
+        }
+        return objects;
+    }
+
+    // Returns the ETag of an object, or null if it does not exist
+    public String getETag(String bucketName, String keyName) {
+        try {
+            return s3.headObject(HeadObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(keyName)
+                            .build())
+                    .eTag();
+        } catch (S3Exception e) {
+            if (e.statusCode() != 404)
+                System.err.println(e.getMessage());
+        }
+        return null;
+    }
+
+    public void deleteObjects(String bucketName, String prefix) {
+        for (S3Object s3Object : listObjectSummaries(bucketName, prefix)) {
+            try {
+                s3.deleteObject(DeleteObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(s3Object.key())
+                        .build());
+            } catch (S3Exception e) {
+                System.err.println(e.awsErrorDetails().errorMessage());
+            }
+        }
+    }
+
     // Places an image into a S3 bucket
     public String putFile(byte[] data, String bucketName, String objectKey) {
         try {
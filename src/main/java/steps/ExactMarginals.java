@@ -0,0 +1,193 @@
+package steps;
+
+import metrics.PipelineCounter;
+import metrics.StepMetrics;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import utils.Biarc;
+import utils.CountTable;
+import utils.Hashing;
+import utils.Sampling;
+import utils.ShardInputFormat;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exact marginals mode: counts count(l) and count(f) with a plain word count over the biarcs.
+ * <p>
+ * The mapper emits every lexeme and feature of a biarc with its count, the combiner sums them
+ * per map and the reducer writes each key as (hash64, count) into a SequenceFile, under
+ * {@code lexemes-r-*} and {@code features-r-*}. The vector builder loads both into
+ * {@link CountTable}s (see {@link #readCounts}), about 32 bytes of heap per distinct key. When
+ * the feature vocabulary no longer fits the reducers' heap, {@link SketchMarginals} computes
+ * the same marginals as Count-Min sketches ({@code vectors.marginals.exact=false}).
+ * <p>
+ * Usage: {@code ExactMarginals <input> <output>}
+ */
+public class ExactMarginals {
+
+    public static final String LEXEME_OUTPUT = "lexemes";
+    public static final String FEATURE_OUTPUT = "features";
+
+    static final String LEXEME_KEY = "L\t";
+    static final String FEATURE_KEY = "F\t";
+
+    // Map output bytes per byte of gzip-compressed biarcs once the combiner has summed them
+    private static final double SHUFFLE_RATIO = 1;
+
+    public static class MapperClass extends Mapper<LongWritable, Text, Text, LongWritable> {
+
+        private final Biarc biarc = new Biarc();
+        private final Text marginal = new Text();
+        private final LongWritable count = new LongWritable();
+        private Sampling sampling;
+
+        @Override
+        protected void setup(Context context) {
+            sampling = Sampling.create(context.getConfiguration());
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String line = value.toString();
+            if (!sampling.keep(line)) {
+                context.getCounter(PipelineCounter.RECORDS_SAMPLED_OUT).increment(1);
+                return;
+            }
+            if (!biarc.parse(line)) {
+                context.getCounter(PipelineCounter.RECORDS_FILTERED).increment(1);
+                return;
+            }
+            context.getCounter(PipelineCounter.RECORDS_PARSED).increment(1);
+            count.set(sampling.scale(biarc.count));
+            context.getCounter(PipelineCounter.LEXEME_FEATURE_PAIRS).increment(biarc.lexemes.size());
+            for (int i = 0; i < biarc.lexemes.size(); i++) {
+                marginal.set(LEXEME_KEY + biarc.lexemes.get(i));
+                context.write(marginal, count);
+                marginal.set(FEATURE_KEY + biarc.features.get(i));
+                context.write(marginal, count);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounter.STEM_CACHE_HITS).increment(biarc.getCacheHits());
+            context.getCounter(PipelineCounter.STEM_CACHE_MISSES).increment(biarc.getCacheMisses());
+        }
+    }
+
+    public static class CombinerClass extends Reducer<Text, LongWritable, Text, LongWritable> {
+
+        private final LongWritable sum = new LongWritable();
+
+        @Override
+        public void reduce(Text key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            long total = 0;
+            for (LongWritable value : values)
+                total += value.get();
+            sum.set(total);
+            context.write(key, sum);
+        }
+    }
+
+    public static class ReducerClass extends Reducer<Text, LongWritable, LongWritable, LongWritable> {
+
+        private final LongWritable hash = new LongWritable();
+        private final LongWritable sum = new LongWritable();
+        private MultipleOutputs<LongWritable, LongWritable> outputs;
+
+        @Override
+        protected void setup(Context context) {
+            outputs = new MultipleOutputs<>(context);
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            long total = 0;
+            for (LongWritable value : values)
+                total += value.get();
+            String name = key.toString();
+            hash.set(Hashing.hash64(name.substring(2)));
+            sum.set(total);
+            outputs.write(name.startsWith(LEXEME_KEY) ? LEXEME_OUTPUT : FEATURE_OUTPUT, hash, sum);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            outputs.close();
+        }
+    }
+
+    /**
+     * Loads the counts written by this step, keyed by "lexemes" and "features"
+     */
+    public static Map<String, CountTable> readCounts(Configuration conf, Path outputDir) throws IOException {
+        Map<String, CountTable> counts = new HashMap<>();
+        FileSystem fs = outputDir.getFileSystem(conf);
+        for (String name : List.of(LEXEME_OUTPUT, FEATURE_OUTPUT)) {
+            FileStatus[] parts = fs.globStatus(new Path(outputDir, name + "-r-*"));
+            if (parts == null || parts.length == 0)
+                continue;
+            CountTable table = new CountTable();
+            LongWritable hash = new LongWritable();
+            LongWritable count = new LongWritable();
+            for (FileStatus status : parts) {
+                try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()))) {
+                    while (reader.next(hash, count))
+                        table.add(hash.get(), count.get());
+                }
+            }
+            counts.put(name, table);
+        }
+        return counts;
+    }
+
+    public static long estimateShuffleBytes(Configuration conf, long inputBytes, Counters upstream) {
+        return (long) (inputBytes * SHUFFLE_RATIO);
+    }
+
+    public static Job createJob(Configuration conf, List<Path> inputs, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "Exact marginals");
+        job.setJarByClass(ExactMarginals.class);
+        job.setMapperClass(MapperClass.class);
+        job.setCombinerClass(CombinerClass.class);
+        job.setReducerClass(ReducerClass.class);
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(LongWritable.class);
+        job.setOutputKeyClass(LongWritable.class);
+        job.setOutputValueClass(LongWritable.class);
+
+        job.setInputFormatClass(ShardInputFormat.class);
+        FileInputFormat.setInputPaths(job, inputs.toArray(new Path[0]));
+        FileOutputFormat.setOutputPath(job, output);
+        LazyOutputFormat.setOutputFormatClass(job, SequenceFileOutputFormat.class);
+        MultipleOutputs.addNamedOutput(job, LEXEME_OUTPUT, SequenceFileOutputFormat.class, LongWritable.class, LongWritable.class);
+        MultipleOutputs.addNamedOutput(job, FEATURE_OUTPUT, SequenceFileOutputFormat.class, LongWritable.class, LongWritable.class);
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] paths = new GenericOptionsParser(conf, args).getRemainingArgs();
+        Job job = createJob(conf, List.of(new Path(paths[0])), new Path(paths[1]));
+        System.exit(StepMetrics.run(job) ? 0 : 1);
+    }
+}
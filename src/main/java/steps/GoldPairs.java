@@ -0,0 +1,144 @@
+package steps;
+
+import metrics.StepMetrics;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import utils.Biarc;
+import utils.Similarity;
+import utils.SparseVector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Scores the gold pairs with the 24 similarity measures, as input for {@link evaluation.Evaluation}.
+ * <p>
+ * The gold pairs ({@code w1 \t w2 \t True|False}, under {@code gold.pairs}) are few, so every
+ * mapper loads them, stems their words like the corpus and sends each lexeme vector to every
+ * pair it takes part in. The reducer gets the two vectors of a pair and writes
+ * {@code w1 \t w2 \t label \t 24 scores}. A word without a vector scores against the empty
+ * vector; pairs where neither word has a vector are left out.
+ * <p>
+ * Usage: {@code GoldPairs -D gold.pairs=<gold pairs> <vectors> <output>}
+ */
+public class GoldPairs {
+
+    public static final String PAIRS = "gold.pairs";
+
+    /**
+     * The gold pairs as "w1 \t w2 \t label" lines keyed by the stems of their words; a pair
+     * listed more than once is kept once, otherwise its reducer would get its vectors twice
+     */
+    static Map<String, List<String>> readPairs(Configuration conf) throws IOException {
+        Map<String, List<String>> pairs = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        Biarc biarc = new Biarc();
+        Path input = new Path(conf.get(PAIRS));
+        FileSystem fs = input.getFileSystem(conf);
+        for (FileStatus status : fs.globStatus(input)) {
+            if (status.isDirectory())
+                continue;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] columns = line.trim().split("\t");
+                    if (columns.length != 3)
+                        continue;
+                    String pair = columns[0] + "\t" + columns[1] + "\t" + Boolean.parseBoolean(columns[2]);
+                    if (!seen.add(pair))
+                        continue;
+                    String first = biarc.stem(columns[0]);
+                    String second = biarc.stem(columns[1]);
+                    if (first != null)
+                        pairs.computeIfAbsent(first, k -> new ArrayList<>()).add(pair);
+                    // A pair of two words with the same stem still needs its vector twice
+                    if (second != null)
+                        pairs.computeIfAbsent(second, k -> new ArrayList<>()).add(pair);
+                }
+            }
+        }
+        return pairs;
+    }
+
+    public static class MapperClass extends Mapper<Text, SparseVector, Text, SparseVector> {
+
+        private final Text pair = new Text();
+        private Map<String, List<String>> pairs;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            pairs = readPairs(context.getConfiguration());
+        }
+
+        @Override
+        public void map(Text key, SparseVector value, Context context) throws IOException, InterruptedException {
+            List<String> memberships = pairs.get(key.toString());
+            if (memberships == null)
+                return;
+            for (String membership : memberships) {
+                pair.set(membership);
+                context.write(pair, value);
+            }
+        }
+    }
+
+    public static class ReducerClass extends Reducer<Text, SparseVector, Text, Text> {
+
+        private final Text scores = new Text();
+
+        @Override
+        public void reduce(Text key, Iterable<SparseVector> values, Context context) throws IOException, InterruptedException {
+            List<SparseVector> vectors = new ArrayList<>(2);
+            for (SparseVector value : values)
+                vectors.add(value.copy());
+            SparseVector first = vectors.get(0);
+            SparseVector second = vectors.size() > 1 ? vectors.get(1) : new SparseVector();
+            scores.set(LshCandidates.join(Similarity.vector(first, second)));
+            context.write(key, scores);
+        }
+    }
+
+    public static Job createJob(Configuration conf, Path vectors, Path pairs, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "Gold pairs");
+        job.getConfiguration().set(PAIRS, pairs.toString());
+        job.setJarByClass(GoldPairs.class);
+        job.setMapperClass(MapperClass.class);
+        job.setReducerClass(ReducerClass.class);
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(SparseVector.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+        FileInputFormat.addInputPath(job, vectors);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] paths = new GenericOptionsParser(conf, args).getRemainingArgs();
+        Job job = createJob(conf, new Path(paths[0]), new Path(conf.get(PAIRS)), new Path(paths[1]));
+        System.exit(StepMetrics.run(job) ? 0 : 1);
+    }
+}
@@ -0,0 +1,105 @@
+package steps;
+
+import metrics.StepMetrics;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.jobcontrol.ControlledJob;
+import org.apache.hadoop.mapreduce.lib.jobcontrol.JobControl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DAG of MapReduce jobs run from a single EMR step.
+ * <p>
+ * Built on {@link JobControl}: a job is submitted to the cluster as soon as all of its
+ * dependencies have succeeded, and jobs that do not depend on each other share the cluster
+ * instead of waiting for each other. The first failure kills every job that
+ * is still running and stops the graph. Jobs added with an estimator are sized by
+ * {@link JobTuner} right before they are submitted.
+ */
+public class JobGraph {
+
+    private final String name;
+    private final JobControl control;
+
+    public JobGraph(String name) {
+        this.name = name;
+        control = new JobControl(name);
+    }
+
+    /**
+     * Null dependencies stand for stages that are not run (e.g. cached) and are ignored
+     */
+    public ControlledJob add(Job job, ControlledJob... dependencies) throws IOException {
+        return add(job, null, dependencies);
+    }
+
+    public ControlledJob add(Job job, JobTuner.Estimator estimator, ControlledJob... dependencies) throws IOException {
+        ControlledJob controlled = estimator == null ? new ControlledJob(job, null) : new ControlledJob(job, null) {
+            @Override
+            protected synchronized void submit() {
+                // The dependencies are done now, so their output and counters can be used
+                List<Job> upstream = new ArrayList<>();
+                if (getDependentJobs() != null)
+                    for (ControlledJob dependency : getDependentJobs())
+                        upstream.add(dependency.getJob());
+                JobTuner.tune(getJob(), estimator, upstream);
+                super.submit();
+            }
+        };
+        for (ControlledJob dependency : dependencies)
+            if (dependency != null)
+                controlled.addDependingJob(dependency);
+        control.addJob(controlled);
+        return controlled;
+    }
+
+    /**
+     * Runs the graph to completion, returns false as soon as any job fails
+     */
+    public boolean run(long pollMillis) throws InterruptedException, IOException {
+        Thread runner = new Thread(control, name);
+        runner.setDaemon(true);
+        runner.start();
+
+        int reported = 0;
+        try {
+            while (!control.allFinished()) {
+                if (!control.getFailedJobList().isEmpty()) {
+                    for (ControlledJob failed : control.getFailedJobList())
+                        System.err.printf("Job %s failed: %s\n", failed.getJobName(), failed.getMessage());
+                    for (ControlledJob running : control.getRunningJobList())
+                        running.killJob();
+                    return false;
+                }
+                List<ControlledJob> succeeded = control.getSuccessfulJobList();
+                for (; reported < succeeded.size(); reported++)
+                    System.out.printf("Job %s succeeded\n", succeeded.get(reported).getJobName());
+                Thread.sleep(pollMillis);
+            }
+            return control.getFailedJobList().isEmpty();
+        } finally {
+            control.stop();
+            publishMetrics();
+        }
+    }
+
+    private void publishMetrics() throws IOException {
+        for (ControlledJob controlled : control.getSuccessfulJobList())
+            publish(controlled.getJob(), true);
+        for (ControlledJob controlled : control.getFailedJobList())
+            publish(controlled.getJob(), false);
+    }
+
+    private static void publish(Job job, boolean succeeded) throws IOException {
+        // Jobs that never got submitted because a dependency failed have nothing to report
+        if (job.getJobID() == null)
+            return;
+        try {
+            StepMetrics.publish(job, succeeded, job.getFinishTime() - job.getStartTime());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package steps;
+
+import metrics.StepMetrics;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import utils.ShardInputFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sizes the reducers, sort buffers and containers of a job from the volume it is about to process.
+ * <p>
+ * {@link JobGraph} calls it right before submitting a job, when the job's input exists and its
+ * dependencies have finished. The input volume is the size of the input objects, the shuffle
+ * volume comes from a per-stage {@link Estimator}, which can use the counters of the upstream
+ * jobs (e.g. the number of lexeme/feature pairs counted with the marginals), and the
+ * number of maps follows from the job's input format. From those it picks:
+ * <ul>
+ *   <li>the reducer count, so every reducer gets about {@code tuning.reduce.bytes}, in full waves</li>
+ *   <li>{@code mapreduce.task.io.sort.mb} large enough for a map's whole output to spill once,
+ *   the spill threshold and the merge factor</li>
+ *   <li>map and reduce container memory and heap, within the share of a node's memory one
+ *   container gets ({@code tuning.node.memory.mb / shards.map.slots})</li>
+ * </ul>
+ * Settings given on the command line are never overridden. The choices are printed and
+ * published with the job's metrics, so they show up in the run report.
+ */
+public class JobTuner {
+
+    public static final String ENABLED = "tuning.enabled";
+    public static final String NODE_MEMORY_MB = "tuning.node.memory.mb";
+    public static final String REDUCE_BYTES = "tuning.reduce.bytes";
+    public static final String MAX_REDUCERS = "tuning.max.reducers";
+    // Set by stages that need an exact reducer count
+    public static final String FIXED_REDUCERS = "tuning.fixed.reducers";
+
+    public static final String INPUT_BYTES = "tuning.estimate.input.bytes";
+    public static final String SHUFFLE_BYTES = "tuning.estimate.shuffle.bytes";
+    public static final String MAPS = "tuning.estimate.maps";
+
+    // What EMR gives YARN on the m4.large core nodes EmrService launches
+    private static final int DEFAULT_NODE_MEMORY_MB = 6144;
+    private static final long MB = 1L << 20;
+    private static final int MIN_HEAP_MB = 1024;
+    private static final int MAX_SORT_MB = 1536;
+    // Heap share left to the JVM next to the container's other memory
+    private static final double HEAP_FRACTION = 0.8;
+    private static final String COMMAND_LINE = "from command line";
+
+    /**
+     * Estimates the bytes a job shuffles; upstream is null when no dependency ran (e.g. it was cached)
+     */
+    public interface Estimator {
+        long shuffleBytes(Configuration conf, long inputBytes, Counters upstream);
+    }
+
+    private JobTuner() {
+    }
+
+    public static void tune(Job job, Estimator estimator, List<Job> upstream) {
+        Configuration conf = job.getConfiguration();
+        if (!conf.getBoolean(ENABLED, true))
+            return;
+        try {
+            long inputBytes = 0;
+            for (Path input : FileInputFormat.getInputPaths(job))
+                inputBytes += input.getFileSystem(conf).getContentSummary(input).getLength();
+            Counters counters = null;
+            for (Job dependency : upstream) {
+                // Null once the job history no longer has the job, the estimators fall back to the input size then
+                Counters dependencyCounters = dependency.getCounters();
+                if (dependencyCounters == null)
+                    continue;
+                if (counters == null)
+                    counters = new Counters();
+                counters.incrAllCounters(dependencyCounters);
+            }
+            long shuffleBytes = Math.max(0, estimator.shuffleBytes(conf, inputBytes, counters));
+            apply(job, inputBytes, maps(job, inputBytes), shuffleBytes);
+        } catch (IOException | RuntimeException e) {
+            // Tuning is an optimization, a failure here must not fail the job
+            System.err.printf("Could not tune job %s, keeping its settings: %s\n", job.getJobName(), e);
+        }
+    }
+
+    /**
+     * The number of maps the job's input format will create: {@link ShardInputFormat} packs the
+     * input into splits of {@link ShardInputFormat#splitSize}, the other file input formats
+     * (e.g. the SequenceFiles read by the LSH and gold pair stages) cut every file into blocks
+     */
+    static long maps(Job job, long inputBytes) throws IOException {
+        Configuration conf = job.getConfiguration();
+        Class<?> inputFormat;
+        try {
+            inputFormat = job.getInputFormatClass();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        if (ShardInputFormat.class.isAssignableFrom(inputFormat))
+            return Math.max(1, divideUp(inputBytes, ShardInputFormat.splitSize(conf, inputBytes)));
+
+        long minSize = FileInputFormat.getMinSplitSize(job);
+        long maxSize = FileInputFormat.getMaxSplitSize(job);
+        long maps = 0;
+        for (Path input : FileInputFormat.getInputPaths(job)) {
+            RemoteIterator<LocatedFileStatus> files = input.getFileSystem(conf).listFiles(input, false);
+            while (files.hasNext()) {
+                LocatedFileStatus file = files.next();
+                String name = file.getPath().getName();
+                // FileInputFormat skips these too (_SUCCESS, _logs, .crc files)
+                if (name.startsWith("_") || name.startsWith(".") || file.getLen() == 0)
+                    continue;
+                long splitSize = Math.max(minSize, Math.min(maxSize, file.getBlockSize()));
+                maps += divideUp(file.getLen(), splitSize);
+            }
+        }
+        return Math.max(1, maps);
+    }
+
+    static void apply(Job job, long inputBytes, long maps, long shuffleBytes) {
+        Configuration conf = job.getConfiguration();
+        int nodes = conf.getInt(ShardInputFormat.NODES, 4);
+        int containersPerNode = conf.getInt(ShardInputFormat.MAP_SLOTS, 2);
+        int containerCapMb = conf.getInt(NODE_MEMORY_MB, DEFAULT_NODE_MEMORY_MB) / containersPerNode;
+        Map<String, String> chosen = new LinkedHashMap<>();
+        conf.setLong(INPUT_BYTES, inputBytes);
+        conf.setLong(SHUFFLE_BYTES, shuffleBytes);
+        chosen.put(INPUT_BYTES, String.valueOf(inputBytes));
+        chosen.put(SHUFFLE_BYTES, String.valueOf(shuffleBytes));
+        conf.setLong(MAPS, maps);
+        chosen.put(MAPS, String.valueOf(maps));
+
+        // Map side: room for a map's whole output plus the 16 bytes of metadata per record
+        long mapOutput = shuffleBytes / maps;
+        int maxSortMb = (int) Math.min(MAX_SORT_MB, containerCapMb * HEAP_FRACTION / 2);
+        int sortMb = (int) Math.min(maxSortMb, Math.max(100, divideUp(mapOutput * 5 / 4, MB)));
+        boolean singleSpill = mapOutput * 5 / 4 <= sortMb * MB;
+        int mapHeapMb = heapMb(2L * sortMb, containerCapMb);
+        set(conf, chosen, MRJobConfig.IO_SORT_MB, sortMb);
+        // With one spill there is nothing to overlap, so let the buffer fill almost completely
+        set(conf, chosen, MRJobConfig.MAP_SORT_SPILL_PERCENT, singleSpill ? "0.95" : "0.8");
+        set(conf, chosen, MRJobConfig.IO_SORT_FACTOR, clamp(maps, 10, 100));
+        set(conf, chosen, MRJobConfig.MAP_MEMORY_MB, containerMb(mapHeapMb, containerCapMb));
+        set(conf, chosen, MRJobConfig.MAP_JAVA_OPTS, "-Xmx" + mapHeapMb + "m");
+
+        // Reduce side: about tuning.reduce.bytes per reducer, rounded up to full waves
+        int reducers = job.getNumReduceTasks();
+        if (!conf.getBoolean(FIXED_REDUCERS, false) && reducers > 0) {
+            int slots = nodes * containersPerNode;
+            long wanted = divideUp(shuffleBytes, conf.getLong(REDUCE_BYTES, 1L << 30));
+            if (wanted > slots)
+                wanted = divideUp(wanted, slots) * slots;
+            reducers = (int) clamp(wanted, 1, conf.getInt(MAX_REDUCERS, 4096));
+            set(conf, chosen, MRJobConfig.NUM_REDUCES, reducers);
+            reducers = job.getNumReduceTasks();
+        }
+        if (reducers > 0) {
+            // Enough heap for the shuffle buffer (70% of the heap) to hold a reducer's whole partition
+            long partition = shuffleBytes / reducers;
+            int reduceHeapMb = heapMb(divideUp(partition * 10 / 7, MB), containerCapMb);
+            set(conf, chosen, MRJobConfig.REDUCE_MEMORY_MB, containerMb(reduceHeapMb, containerCapMb));
+            set(conf, chosen, MRJobConfig.REDUCE_JAVA_OPTS, "-Xmx" + reduceHeapMb + "m");
+        }
+
+        StringBuilder line = new StringBuilder();
+        chosen.forEach((key, value) -> line.append(' ').append(key).append('=').append(value));
+        System.out.printf("Tuned job %s:%s\n", job.getJobName(), line);
+        List<String> published = new ArrayList<>(conf.getStringCollection(StepMetrics.SETTINGS));
+        published.addAll(chosen.keySet());
+        conf.setStrings(StepMetrics.SETTINGS, published.toArray(new String[0]));
+    }
+
+    /**
+     * Sets the key unless the user gave it on the command line
+     */
+    private static void set(Configuration conf, Map<String, String> chosen, String key, Object value) {
+        String[] sources = conf.getPropertySources(key);
+        if (sources != null && Arrays.asList(sources).contains(COMMAND_LINE)) {
+            chosen.put(key, conf.get(key) + " (given)");
+            return;
+        }
+        conf.set(key, String.valueOf(value));
+        chosen.put(key, String.valueOf(value));
+    }
+
+    /**
+     * At least MIN_HEAP_MB, but never more than the container leaves for the heap, even on small nodes
+     */
+    private static int heapMb(long wantedMb, int containerCapMb) {
+        return (int) Math.min((long) (containerCapMb * HEAP_FRACTION), Math.max(MIN_HEAP_MB, wantedMb));
+    }
+
+    private static int containerMb(int heapMb, int containerCapMb) {
+        return (int) Math.min(containerCapMb, Math.ceil(heapMb / HEAP_FRACTION));
+    }
+
+    private static long divideUp(long value, long divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
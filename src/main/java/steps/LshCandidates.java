@@ -0,0 +1,410 @@
+package steps;
+
+import metrics.PipelineCounter;
+import metrics.StepMetrics;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.reduce.LongSumReducer;
+import org.apache.hadoop.util.GenericOptionsParser;
+import utils.CompactVector;
+import utils.Hashing;
+import utils.Similarity;
+import utils.SparseVector;
+
+import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds similar lexemes beyond the gold pairs without scoring all pairs of the vocabulary.
+ * <p>
+ * The mapper computes two locality sensitive signatures per lexeme vector: MinHash over the
+ * feature set (Jaccard/Dice) and random hyperplanes over the weights of one association
+ * measure (cosine). Each signature is cut into bands and the lexeme is sent to one bucket
+ * per band. The reducer scores every pair inside a bucket with the 24 similarity measures.
+ * A pair that collides in several bands is only emitted from the first band it collides in,
+ * which the reducer can tell from the band hashes carried along with the vector.
+ * <p>
+ * Buckets above {@code lsh.max.bucket} are stop-word like and scoring them would be quadratic.
+ * A small counting job ({@link #createBucketSizeJob}) finds them first; the mapper does not
+ * send vectors to them and marks those bands in the entry, so a pair whose first collision
+ * is in an oversized bucket is still scored in the next band it shares.
+ * <p>
+ * Every vector is shuffled once per band, so it travels as a {@link CompactVector} quantized
+ * per {@code lsh.quantization} (FLOAT16 by default, INT8 for the smallest shuffle).
+ * <p>
+ * Input: SequenceFile of (lexeme, {@link SparseVector}). Output: {@code l1 \t l2 \t 24 scores}.
+ * <p>
+ * Usage: {@code LshCandidates [-D lsh.*=..] <vectors> <bucket sizes dir> <output>}
+ */
+public class LshCandidates {
+
+    public static final String MINHASH_BANDS = "lsh.minhash.bands";
+    public static final String MINHASH_ROWS = "lsh.minhash.rows";
+    public static final String HYPERPLANE_BANDS = "lsh.hyperplane.bands";
+    public static final String HYPERPLANE_ROWS = "lsh.hyperplane.rows";
+    public static final String HYPERPLANE_MEASURE = "lsh.hyperplane.measure";
+    public static final String MAX_BUCKET = "lsh.max.bucket";
+    public static final String QUANTIZATION = "lsh.quantization";
+    // Set on the candidates job to the output of the bucket size job
+    static final String BUCKET_SIZES = "lsh.bucket.sizes";
+
+    /**
+     * A lexeme together with all of its band hashes, minhash bands first, and a bit per band
+     * whose bucket is oversized and therefore not scored
+     */
+    public static class BucketEntry implements Writable {
+        Text lexeme = new Text();
+        long[] bands = new long[0];
+        long[] oversized = new long[0];
+        CompactVector vector = new CompactVector();
+
+        boolean isOversized(int band) {
+            return (oversized[band >> 6] & 1L << band) != 0;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            lexeme.write(out);
+            out.writeInt(bands.length);
+            for (long band : bands)
+                out.writeLong(band);
+            for (long word : oversized)
+                out.writeLong(word);
+            vector.write(out);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            lexeme.readFields(in);
+            int length = in.readInt();
+            if (bands.length != length) {
+                bands = new long[length];
+                oversized = new long[(length + 63) >> 6];
+            }
+            for (int i = 0; i < length; i++)
+                bands[i] = in.readLong();
+            for (int i = 0; i < oversized.length; i++)
+                oversized[i] = in.readLong();
+            vector.readFields(in);
+        }
+
+        BucketEntry copy() {
+            BucketEntry copy = new BucketEntry();
+            copy.lexeme = new Text(lexeme);
+            copy.bands = bands.clone();
+            copy.oversized = oversized.clone();
+            copy.vector = vector.copy();
+            return copy;
+        }
+    }
+
+    /**
+     * The banding settings shared by the counting and the candidate mappers
+     */
+    static class Signature {
+        final int minHashBands, minHashRows, hyperplaneBands, hyperplaneRows, measure;
+
+        Signature(Configuration conf) {
+            minHashBands = conf.getInt(MINHASH_BANDS, 20);
+            minHashRows = conf.getInt(MINHASH_ROWS, 5);
+            hyperplaneBands = conf.getInt(HYPERPLANE_BANDS, 16);
+            hyperplaneRows = Math.min(conf.getInt(HYPERPLANE_ROWS, 12), 64);
+            measure = conf.getInt(HYPERPLANE_MEASURE, SparseVector.PMI);
+        }
+
+        long[] bands(SparseVector vector) {
+            long[] minHash = minHashBands(vector, minHashBands, minHashRows);
+            long[] hyperplane = hyperplaneBands(vector, measure, hyperplaneBands, hyperplaneRows);
+            long[] bands = new long[minHash.length + hyperplane.length];
+            System.arraycopy(minHash, 0, bands, 0, minHash.length);
+            System.arraycopy(hyperplane, 0, bands, minHash.length, hyperplane.length);
+            return bands;
+        }
+
+        static String bucket(int band, long hash) {
+            return band + ":" + Long.toHexString(hash);
+        }
+    }
+
+    static long[] minHashBands(SparseVector vector, int bands, int rows) {
+        long[] result = new long[bands];
+        for (int band = 0; band < bands; band++) {
+            long bandHash = band;
+            for (int row = 0; row < rows; row++) {
+                long seed = Hashing.mix(band * rows + row + 1);
+                long min = Long.MAX_VALUE;
+                for (int i = 0; i < vector.size(); i++)
+                    min = Math.min(min, Hashing.mix(vector.id(i) ^ seed));
+                bandHash = Hashing.mix(bandHash * 31 + min);
+            }
+            result[band] = bandHash;
+        }
+        return result;
+    }
+
+    static long[] hyperplaneBands(SparseVector vector, int measure, int bands, int rows) {
+        long[] result = new long[bands];
+        for (int band = 0; band < bands; band++) {
+            long bits = 0;
+            for (int row = 0; row < rows; row++) {
+                // Each hyperplane assigns a pseudo random +-1 coordinate to every feature
+                long seed = Hashing.mix(-(band * rows + row + 1));
+                double projection = 0;
+                for (int i = 0; i < vector.size(); i++) {
+                    double sign = (Hashing.mix(vector.id(i) ^ seed) & 1) == 0 ? 1 : -1;
+                    projection += sign * vector.weight(measure, i);
+                }
+                bits = bits << 1 | (projection >= 0 ? 1 : 0);
+            }
+            result[band] = Hashing.mix(bits + band);
+        }
+        return result;
+    }
+
+    public static class SizeMapperClass extends Mapper<Text, SparseVector, Text, LongWritable> {
+
+        private static final LongWritable ONE = new LongWritable(1);
+        private final Text bucket = new Text();
+        private Signature signature;
+
+        @Override
+        protected void setup(Context context) {
+            signature = new Signature(context.getConfiguration());
+        }
+
+        @Override
+        public void map(Text key, SparseVector value, Context context) throws IOException, InterruptedException {
+            if (value.size() == 0)
+                return;
+            long[] bands = signature.bands(value);
+            for (int band = 0; band < bands.length; band++) {
+                bucket.set(Signature.bucket(band, bands[band]));
+                context.write(bucket, ONE);
+            }
+        }
+    }
+
+    /**
+     * Writes only the oversized buckets, there are few of them
+     */
+    public static class SizeReducerClass extends Reducer<Text, LongWritable, Text, LongWritable> {
+
+        private final LongWritable size = new LongWritable();
+        private int maxBucket;
+
+        @Override
+        protected void setup(Context context) {
+            maxBucket = context.getConfiguration().getInt(MAX_BUCKET, 500);
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            long total = 0;
+            for (LongWritable value : values)
+                total += value.get();
+            if (total <= maxBucket)
+                return;
+            context.getCounter(PipelineCounter.BUCKETS_SKIPPED).increment(1);
+            size.set(total);
+            context.write(key, size);
+        }
+    }
+
+    public static class MapperClass extends Mapper<Text, SparseVector, Text, BucketEntry> {
+
+        private final BucketEntry entry = new BucketEntry();
+        private final Text bucket = new Text();
+        private final Set<String> oversized = new HashSet<>();
+        private Signature signature;
+        private CompactVector.Quantization quantization;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            signature = new Signature(conf);
+            quantization = conf.getEnum(QUANTIZATION, CompactVector.Quantization.FLOAT16);
+            Path sizes = new Path(conf.get(BUCKET_SIZES));
+            FileSystem fs = sizes.getFileSystem(conf);
+            for (FileStatus status : fs.globStatus(new Path(sizes, "part-*"))) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null)
+                        oversized.add(line.substring(0, line.indexOf('\t')));
+                }
+            }
+        }
+
+        @Override
+        public void map(Text key, SparseVector value, Context context) throws IOException, InterruptedException {
+            if (value.size() == 0) {
+                context.getCounter(PipelineCounter.RECORDS_FILTERED).increment(1);
+                return;
+            }
+            context.getCounter(PipelineCounter.VECTORS).increment(1);
+            context.getCounter(PipelineCounter.VECTOR_FEATURES).increment(value.size());
+            entry.lexeme = key;
+            entry.vector = CompactVector.encode(value, quantization);
+            entry.bands = signature.bands(value);
+            entry.oversized = new long[(entry.bands.length + 63) >> 6];
+            for (int band = 0; band < entry.bands.length; band++)
+                if (oversized.contains(Signature.bucket(band, entry.bands[band])))
+                    entry.oversized[band >> 6] |= 1L << band;
+
+            for (int band = 0; band < entry.bands.length; band++) {
+                if (entry.isOversized(band))
+                    continue;
+                bucket.set(Signature.bucket(band, entry.bands[band]));
+                context.write(bucket, entry);
+            }
+        }
+    }
+
+    public static class ReducerClass extends Reducer<Text, BucketEntry, Text, Text> {
+
+        private final List<BucketEntry> entries = new ArrayList<>();
+        private final Text pair = new Text();
+        private final Text scores = new Text();
+        private int maxBucket;
+
+        @Override
+        protected void setup(Context context) {
+            maxBucket = context.getConfiguration().getInt(MAX_BUCKET, 500);
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<BucketEntry> values, Context context) throws IOException, InterruptedException {
+            String name = key.toString();
+            int band = Integer.parseInt(name.substring(0, name.indexOf(':')));
+
+            entries.clear();
+            for (BucketEntry value : values) {
+                // The counting job already kept these away, this only guards against a stale sizes dir
+                if (entries.size() == maxBucket) {
+                    context.getCounter(PipelineCounter.BUCKETS_SKIPPED).increment(1);
+                    return;
+                }
+                entries.add(value.copy());
+            }
+
+            for (int i = 0; i < entries.size(); i++) {
+                for (int j = i + 1; j < entries.size(); j++) {
+                    BucketEntry a = entries.get(i);
+                    BucketEntry b = entries.get(j);
+                    if (collidesEarlier(a, b, band))
+                        continue;
+                    boolean ordered = a.lexeme.compareTo(b.lexeme) < 0;
+                    pair.set((ordered ? a.lexeme : b.lexeme) + "\t" + (ordered ? b.lexeme : a.lexeme));
+                    scores.set(join(Similarity.vector(a.vector, b.vector)));
+                    context.write(pair, scores);
+                    context.getCounter(PipelineCounter.PAIRS_SCORED).increment(1);
+                }
+            }
+        }
+
+        /**
+         * Whether the pair was already scored in an earlier band; a shared oversized bucket was not scored
+         */
+        private static boolean collidesEarlier(BucketEntry a, BucketEntry b, int band) {
+            for (int i = 0; i < band; i++)
+                if (a.bands[i] == b.bands[i] && !a.isOversized(i))
+                    return true;
+            return false;
+        }
+    }
+
+    static String join(double[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                builder.append('\t');
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Every vector is shuffled once per band; sized from the vector builder's counters when it ran,
+     * otherwise from the plain vectors' size (36 bytes per feature)
+     */
+    public static long estimateShuffleBytes(Configuration conf, long inputBytes, Counters upstream) {
+        int bands = conf.getInt(MINHASH_BANDS, 20) + conf.getInt(HYPERPLANE_BANDS, 16);
+        int width = conf.getEnum(QUANTIZATION, CompactVector.Quantization.FLOAT16) == CompactVector.Quantization.FLOAT16 ? 2 : 1;
+        // Varint id delta plus one code per measure
+        int featureBytes = 2 + SparseVector.MEASURES * width;
+        long vectors = upstream == null ? 0 : upstream.findCounter(PipelineCounter.VECTORS).getValue();
+        long features = upstream == null ? 0 : upstream.findCounter(PipelineCounter.VECTOR_FEATURES).getValue();
+        if (vectors == 0)
+            return (long) bands * inputBytes / 36 * featureBytes;
+        // Bucket key, lexeme, band hashes and the per-measure quantization parameters
+        long entryBytes = 24 + 12 + bands * Long.BYTES + SparseVector.MEASURES * 8;
+        return bands * (vectors * entryBytes + features * featureBytes);
+    }
+
+    /**
+     * Counts the vectors per bucket and writes the oversized buckets to the output directory
+     */
+    public static Job createBucketSizeJob(Configuration conf, Path input, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "LSH bucket sizes");
+        job.setJarByClass(LshCandidates.class);
+        job.setMapperClass(SizeMapperClass.class);
+        job.setCombinerClass(LongSumReducer.class);
+        job.setReducerClass(SizeReducerClass.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(LongWritable.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    public static Job createJob(Configuration conf, Path input, Path bucketSizes, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "LSH candidates");
+        job.getConfiguration().set(BUCKET_SIZES, bucketSizes.toString());
+        job.setJarByClass(LshCandidates.class);
+        job.setMapperClass(MapperClass.class);
+        job.setReducerClass(ReducerClass.class);
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(BucketEntry.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] paths = new GenericOptionsParser(conf, args).getRemainingArgs();
+        Path bucketSizes = new Path(paths[1]);
+        if (!StepMetrics.run(createBucketSizeJob(conf, new Path(paths[0]), bucketSizes)))
+            System.exit(1);
+        Job job = createJob(conf, new Path(paths[0]), bucketSizes, new Path(paths[2]));
+        System.exit(StepMetrics.run(job) ? 0 : 1);
+    }
+}
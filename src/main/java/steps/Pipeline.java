@@ -0,0 +1,155 @@
+package steps;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.lib.jobcontrol.ControlledJob;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Single EMR step that runs every MapReduce stage as one {@link JobGraph}.
+ * <p>
+ * The marginals are counted from the biarcs ({@link ExactMarginals}, or sketched by {@link SketchMarginals}
+ * with {@code vectors.marginals.exact=false}), the lexeme vectors are built from the biarcs and
+ * the marginals, and the LSH candidates are scored over the vectors. Large
+ * corpus shards are converted to a splittable format first when {@link ShardIngest} asks for it.
+ * When {@code cache.uri} is set, stages whose inputs, code and settings did not change are
+ * skipped and their cached output is used (see {@link StageCache}). Where every stage's
+ * output ended up is written to {@code <output dir>/stages.tsv}. With {@code sample.fraction}
+ * below 1 the stages only read a deterministic sample of the biarcs (see {@link utils.Sampling}).
+ * With {@code gold.pairs} set, the gold pairs are scored over the vectors as well (see {@link GoldPairs}).
+ * Every job is sized by {@link JobTuner} from its input and its upstream stage's counters.
+ * <p>
+ * Each stage reads the output of the one before it, so the graph is mostly a chain:
+ * conversion, marginals, vectors, then the LSH bucket sizes and candidates. Only the gold
+ * pair scoring runs next to the LSH jobs. The graph mostly saves the step boundaries and
+ * lets cached stages drop out.
+ * <p>
+ * Usage: {@code Pipeline [-D ..] <biarcs input> <output dir>}
+ */
+public class Pipeline {
+
+    public static final String POLL_MILLIS = "pipeline.poll.millis";
+
+    public static final String INGEST = "ingest";
+    public static final String MARGINALS = "marginals";
+    public static final String VECTORS = "vectors";
+    public static final String CANDIDATES = "candidates";
+    public static final String GOLD = "gold";
+    static final String BUCKET_SIZES = "lsh-buckets";
+
+    /**
+     * Where a stage writes its output, and whether the cache already holds it
+     */
+    static class Stage {
+        final String name;
+        final String key;
+        final Path output;
+        final boolean cached;
+
+        Stage(String name, String key, Path output, boolean cached) {
+            this.name = name;
+            this.key = key;
+            this.output = output;
+            this.cached = cached;
+        }
+    }
+
+    static Stage stage(Configuration conf, StageCache cache, Path outputDir, String name, List<Path> inputs,
+                       List<Stage> upstream, String... configPrefixes) throws IOException {
+        if (cache == null)
+            return new Stage(name, null, new Path(outputDir, name), false);
+        List<String> upstreamKeys = upstream.stream().map(stage -> stage.key).collect(Collectors.toList());
+        String key = cache.key(name, inputs, upstreamKeys, configPrefixes);
+        Path output = cache.output(name, key);
+        boolean cached = cache.contains(name, key);
+        if (cached)
+            System.out.printf("Stage %s is cached under key %s, skipping it\n", name, key);
+        else
+            // Partial output of an earlier failed attempt with the same key
+            output.getFileSystem(conf).delete(output, true);
+        return new Stage(name, key, output, cached);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] paths = new GenericOptionsParser(conf, args).getRemainingArgs();
+        Path biarcs = new Path(paths[0]);
+        Path output = new Path(paths[1]);
+
+        StageCache cache = StageCache.create(conf);
+        JobGraph graph = new JobGraph("Syntactic similarities");
+        List<Stage> stages = new ArrayList<>();
+
+        // The shards.* settings only change how the input is split, not the result
+        boolean exactMarginals = conf.getBoolean(VectorBuilder.EXACT_MARGINALS, true);
+        Stage marginals = stage(conf, cache, output, MARGINALS, List.of(biarcs), List.of(), "sketch.", "sample.", VectorBuilder.EXACT_MARGINALS);
+        Stage vectors = stage(conf, cache, output, VECTORS, List.of(biarcs), List.of(marginals), "vectors.", "sample.");
+        Stage candidates = stage(conf, cache, output, CANDIDATES, List.of(), List.of(vectors), "lsh.");
+        stages.add(marginals);
+        stages.add(vectors);
+        stages.add(candidates);
+        String goldPairs = conf.get(GoldPairs.PAIRS);
+        Stage gold = null;
+        if (goldPairs != null) {
+            gold = stage(conf, cache, output, GOLD, List.of(new Path(goldPairs)), List.of(vectors), "gold.");
+            stages.add(gold);
+        }
+
+        List<Path> corpus = List.of(biarcs);
+        ControlledJob conversion = null;
+        if (!marginals.cached || !vectors.cached) {
+            ShardIngest.Plan ingest = ShardIngest.plan(conf, biarcs, new Path(output, INGEST));
+            corpus = ingest.inputs;
+            if (ingest.conversion != null)
+                conversion = graph.add(ingest.conversion);
+        }
+        ControlledJob marginalsJob = null;
+        if (!marginals.cached && exactMarginals)
+            marginalsJob = graph.add(ExactMarginals.createJob(conf, corpus, marginals.output),
+                    ExactMarginals::estimateShuffleBytes, conversion);
+        else if (!marginals.cached)
+            marginalsJob = graph.add(SketchMarginals.createJob(conf, corpus, marginals.output),
+                    SketchMarginals::estimateShuffleBytes, conversion);
+        ControlledJob vectorsJob = null;
+        if (!vectors.cached)
+            vectorsJob = graph.add(VectorBuilder.createJob(conf, corpus, marginals.output, vectors.output),
+                    VectorBuilder::estimateShuffleBytes, conversion, marginalsJob);
+        if (!candidates.cached) {
+            // The oversized buckets depend on the vectors and the lsh.* settings, recount them every run
+            Path bucketSizes = new Path(output, BUCKET_SIZES);
+            bucketSizes.getFileSystem(conf).delete(bucketSizes, true);
+            ControlledJob bucketSizesJob = graph.add(LshCandidates.createBucketSizeJob(conf, vectors.output, bucketSizes), vectorsJob);
+            graph.add(LshCandidates.createJob(conf, vectors.output, bucketSizes, candidates.output),
+                    LshCandidates::estimateShuffleBytes, vectorsJob, bucketSizesJob);
+        }
+        if (gold != null && !gold.cached)
+            graph.add(GoldPairs.createJob(conf, vectors.output, new Path(goldPairs), gold.output), vectorsJob);
+
+        boolean succeeded = graph.run(conf.getLong(POLL_MILLIS, 5000));
+        if (succeeded && cache != null) {
+            for (Stage stage : stages)
+                cache.touch(stage.name, stage.key);
+            cache.evict();
+        }
+        writeStages(conf, output, stages);
+        System.exit(succeeded ? 0 : 1);
+    }
+
+    private static void writeStages(Configuration conf, Path output, List<Stage> stages) throws IOException {
+        StringBuilder tsv = new StringBuilder();
+        for (Stage stage : stages)
+            tsv.append(stage.name).append('\t').append(stage.output).append('\t')
+                    .append(stage.cached ? "cached" : "computed").append('\n');
+        Path file = new Path(output, "stages.tsv");
+        try (FSDataOutputStream out = file.getFileSystem(conf).create(file, true)) {
+            out.write(tsv.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package steps;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import utils.Hashing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prepares the gzip-compressed corpus shards for {@link utils.ShardInputFormat}.
+ * <p>
+ * Gzip is not splittable, so a shard above {@code shards.convert.threshold} bytes would
+ * become one oversized mapper. Those shards are rewritten once by a map-only job into
+ * block-compressed SequenceFiles, which are splittable; smaller shards are read in place
+ * and combined. The converted copy is kept under the work directory in a subdirectory named
+ * after a fingerprint of the large shards (path, length and modification time), and reused
+ * by later runs as long as the shards are unchanged and its {@code _SUCCESS} marker exists.
+ */
+public class ShardIngest {
+
+    public static final String CONVERT_THRESHOLD = "shards.convert.threshold";
+    public static final String CODEC = "shards.codec";
+
+    public static final String CONVERTED = "converted";
+
+    /**
+     * The input paths for the corpus, and the conversion job that has to run first (if any)
+     */
+    public static class Plan {
+        public final List<Path> inputs = new ArrayList<>();
+        public Job conversion;
+    }
+
+    public static Plan plan(Configuration conf, Path input, Path work) throws IOException {
+        Plan plan = new Plan();
+        FileSystem fs = input.getFileSystem(conf);
+        long threshold = conf.getLong(CONVERT_THRESHOLD, 256L << 20);
+
+        List<Path> large = new ArrayList<>();
+        List<String> fingerprint = new ArrayList<>();
+        for (FileStatus status : fs.listStatus(input)) {
+            if (status.isDirectory())
+                continue;
+            if (status.getLen() > threshold && status.getPath().getName().endsWith(".gz")) {
+                large.add(status.getPath());
+                fingerprint.add(status.getPath() + "\t" + status.getLen() + "\t" + status.getModificationTime());
+            } else {
+                plan.inputs.add(status.getPath());
+            }
+        }
+        if (large.isEmpty())
+            return plan;
+
+        fingerprint.sort(null);
+        Path convertedRoot = new Path(work, CONVERTED);
+        Path converted = new Path(convertedRoot, Long.toHexString(Hashing.hash64(String.join("\n", fingerprint))));
+        plan.inputs.add(converted);
+        if (fs.exists(new Path(converted, "_SUCCESS"))) {
+            System.out.printf("Reusing %d converted shards from %s\n", large.size(), converted);
+            return plan;
+        }
+        // Conversions of an earlier set of shards, or left over from an interrupted conversion
+        fs.delete(convertedRoot, true);
+        plan.conversion = createJob(conf, large, converted);
+        return plan;
+    }
+
+    public static Job createJob(Configuration conf, List<Path> shards, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "Shard conversion");
+        job.setJarByClass(ShardIngest.class);
+        // Identity map, every gzip shard is one split and becomes one SequenceFile
+        job.setMapperClass(Mapper.class);
+        job.setNumReduceTasks(0);
+        job.setOutputKeyClass(LongWritable.class);
+        job.setOutputValueClass(Text.class);
+
+        job.setInputFormatClass(TextInputFormat.class);
+        FileInputFormat.setInputPaths(job, shards.toArray(new Path[0]));
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setOutputPath(job, output);
+        FileOutputFormat.setCompressOutput(job, true);
+        FileOutputFormat.setOutputCompressorClass(job,
+                conf.getClass(CODEC, DefaultCodec.class, CompressionCodec.class));
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+        return job;
+    }
+}
@@ -0,0 +1,326 @@
+package steps;
+
+import metrics.PipelineCounter;
+import metrics.StepMetrics;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.GenericWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import utils.Biarc;
+import utils.CountMinSketch;
+import utils.Hashing;
+import utils.Sampling;
+import utils.ShardInputFormat;
+import utils.SlicedSketch;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximate marginals mode: computes count(l) and count(f) as Count-Min sketches
+ * instead of shuffling every lexeme and feature key.
+ * <p>
+ * Every mapper fills its own pair of sketches and emits them once in cleanup. The sketches
+ * are {@link SlicedSketch}es with one slice per reducer ({@code sketch.slices}), so the merge
+ * is spread over the reducers; the merged slices are written as a SequenceFile for the
+ * association stage (see {@link #readSketches}). A deterministic hash sample of the keys is
+ * also counted exactly and sent to the reducer of its slice, which reports the observed error
+ * next to the theoretical bound.
+ * <p>
+ * Scaling limit: every map still shuffles two dense tables, {@code 2 * e / epsilon * ln(1 / delta)}
+ * longs (about 22MB at the defaults), so the shuffle grows with the number of maps, not with the
+ * corpus vocabulary; at a few TB of biarcs that is tens of GB. Slicing bounds what one reducer
+ * receives to {@code 1 / sketch.slices} of it. Beyond that, fewer and larger splits for this
+ * stage ({@code shards.*}) or a coarser {@code sketch.epsilon} are what bring it down.
+ * <p>
+ * Usage: {@code SketchMarginals [-D sketch.epsilon=..] [-D sketch.delta=..] [-D sketch.slices=..] <input> <output>}
+ */
+public class SketchMarginals {
+
+    public static final String EPSILON = "sketch.epsilon";
+    public static final String DELTA = "sketch.delta";
+    public static final String CONSERVATIVE = "sketch.conservative";
+    public static final String SAMPLE_RATE = "sketch.sample.rate";
+    public static final String SLICES = "sketch.slices";
+
+    public static final String SKETCH_OUTPUT = "sketch";
+    public static final String REPORT_OUTPUT = "report";
+
+    // The '!' prefix sorts the sketches before the sampled keys in the reducer
+    static final String LEXEME_SKETCH = "!lexemes";
+    static final String FEATURE_SKETCH = "!features";
+    static final String LEXEME_SAMPLE = "L\t";
+    static final String FEATURE_SAMPLE = "F\t";
+
+    /**
+     * Map output value: either a partial sketch or an exact count of a sampled key
+     */
+    public static class MarginalWritable extends GenericWritable {
+
+        @SuppressWarnings("unchecked")
+        private static final Class<? extends Writable>[] TYPES = new Class[]{CountMinSketch.class, LongWritable.class};
+
+        public MarginalWritable() {
+        }
+
+        public MarginalWritable(Writable instance) {
+            set(instance);
+        }
+
+        @Override
+        protected Class<? extends Writable>[] getTypes() {
+            return TYPES;
+        }
+    }
+
+    static boolean sampled(String key, int sampleRate) {
+        return Math.floorMod(Hashing.hash64(key), sampleRate) == 0;
+    }
+
+    /**
+     * One slice per reducer, together as wide as a single sketch for sketch.epsilon
+     */
+    static CountMinSketch[] newSketches(Configuration conf, int slices) {
+        CountMinSketch[] sketches = new CountMinSketch[slices];
+        for (int i = 0; i < slices; i++)
+            sketches[i] = new CountMinSketch(sliceWidth(conf, slices), depth(conf), conf.getBoolean(CONSERVATIVE, true));
+        return sketches;
+    }
+
+    static int sliceWidth(Configuration conf, int slices) {
+        return (int) Math.ceil(Math.E / conf.getDouble(EPSILON, 1e-5) / slices);
+    }
+
+    static int depth(Configuration conf) {
+        return (int) Math.ceil(Math.log(1 / conf.getDouble(DELTA, 0.01)));
+    }
+
+    /**
+     * Sends each slice, and every sampled key, to the reducer of its slice
+     */
+    public static class PartitionerClass extends Partitioner<Text, MarginalWritable> {
+
+        @Override
+        public int getPartition(Text key, MarginalWritable value, int partitions) {
+            String name = key.toString();
+            if (name.startsWith("!"))
+                return Integer.parseInt(name.substring(name.indexOf('\t') + 1)) % partitions;
+            return SlicedSketch.slice(Hashing.hash64(name.substring(2)), partitions);
+        }
+    }
+
+    public static class MapperClass extends Mapper<LongWritable, Text, Text, MarginalWritable> {
+
+        private final Biarc biarc = new Biarc();
+        private final Map<String, Long> lexemeSample = new HashMap<>();
+        private final Map<String, Long> featureSample = new HashMap<>();
+        private CountMinSketch[] lexemes;
+        private CountMinSketch[] features;
+        private int sampleRate;
+        private Sampling sampling;
+
+        @Override
+        protected void setup(Context context) {
+            int slices = Math.max(1, context.getNumReduceTasks());
+            lexemes = newSketches(context.getConfiguration(), slices);
+            features = newSketches(context.getConfiguration(), slices);
+            sampleRate = context.getConfiguration().getInt(SAMPLE_RATE, 1000);
+            sampling = Sampling.create(context.getConfiguration());
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) {
+            String line = value.toString();
+            if (!sampling.keep(line)) {
+                context.getCounter(PipelineCounter.RECORDS_SAMPLED_OUT).increment(1);
+                return;
+            }
+            if (!biarc.parse(line)) {
+                context.getCounter(PipelineCounter.RECORDS_FILTERED).increment(1);
+                return;
+            }
+            context.getCounter(PipelineCounter.RECORDS_PARSED).increment(1);
+            long count = sampling.scale(biarc.count);
+            context.getCounter(PipelineCounter.LEXEME_FEATURE_PAIRS).increment(biarc.lexemes.size());
+            for (int i = 0; i < biarc.lexemes.size(); i++) {
+                String lexeme = biarc.lexemes.get(i);
+                String feature = biarc.features.get(i);
+                long lexemeHash = Hashing.hash64(lexeme);
+                long featureHash = Hashing.hash64(feature);
+                lexemes[SlicedSketch.slice(lexemeHash, lexemes.length)].add(lexemeHash, count);
+                features[SlicedSketch.slice(featureHash, features.length)].add(featureHash, count);
+                if (sampled(lexeme, sampleRate))
+                    lexemeSample.merge(lexeme, count, Long::sum);
+                if (sampled(feature, sampleRate))
+                    featureSample.merge(feature, count, Long::sum);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            context.getCounter(PipelineCounter.STEM_CACHE_HITS).increment(biarc.getCacheHits());
+            context.getCounter(PipelineCounter.STEM_CACHE_MISSES).increment(biarc.getCacheMisses());
+            for (int i = 0; i < lexemes.length; i++) {
+                context.write(new Text(LEXEME_SKETCH + "\t" + i), new MarginalWritable(lexemes[i]));
+                context.write(new Text(FEATURE_SKETCH + "\t" + i), new MarginalWritable(features[i]));
+            }
+            for (Map.Entry<String, Long> entry : lexemeSample.entrySet())
+                context.write(new Text(LEXEME_SAMPLE + entry.getKey()), new MarginalWritable(new LongWritable(entry.getValue())));
+            for (Map.Entry<String, Long> entry : featureSample.entrySet())
+                context.write(new Text(FEATURE_SAMPLE + entry.getKey()), new MarginalWritable(new LongWritable(entry.getValue())));
+        }
+    }
+
+    public static class ReducerClass extends Reducer<Text, MarginalWritable, Text, Writable> {
+
+        // This reducer's slice of each sketch, keyed by "!lexemes" or "!features"
+        private final Map<String, CountMinSketch> sketches = new HashMap<>();
+        private final Map<String, String> sliceNames = new HashMap<>();
+        private final Map<String, double[]> errors = new HashMap<>();
+        private MultipleOutputs<Text, Writable> outputs;
+
+        @Override
+        protected void setup(Context context) {
+            outputs = new MultipleOutputs<>(context);
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<MarginalWritable> values, Context context) throws IOException, InterruptedException {
+            String name = key.toString();
+            if (name.startsWith(LEXEME_SKETCH) || name.startsWith(FEATURE_SKETCH)) {
+                CountMinSketch merged = null;
+                for (MarginalWritable value : values) {
+                    CountMinSketch partial = (CountMinSketch) value.get();
+                    if (merged == null)
+                        merged = new CountMinSketch(partial.getWidth(), partial.getDepth(), partial.isConservative());
+                    merged.merge(partial);
+                }
+                String kind = name.substring(0, name.indexOf('\t'));
+                sketches.put(kind, merged);
+                sliceNames.put(kind, name.substring(1));
+                outputs.write(SKETCH_OUTPUT, new Text(name.substring(1)), merged);
+                return;
+            }
+
+            long exact = 0;
+            for (MarginalWritable value : values)
+                exact += ((LongWritable) value.get()).get();
+            String kind = name.startsWith(LEXEME_SAMPLE) ? LEXEME_SKETCH : FEATURE_SKETCH;
+            CountMinSketch sketch = sketches.get(kind);
+            if (sketch == null)
+                return;
+            context.getCounter(PipelineCounter.SAMPLED_KEYS).increment(1);
+            long approx = sketch.estimate(name.substring(2));
+            long error = approx - exact;
+
+            // count, sum of relative errors, max absolute error, keys within the bound
+            double[] stats = errors.computeIfAbsent(kind, k -> new double[4]);
+            stats[0]++;
+            stats[1] += (double) error / exact;
+            stats[2] = Math.max(stats[2], error);
+            if (error <= sketch.errorBound())
+                stats[3]++;
+            outputs.write(REPORT_OUTPUT, key, new Text(exact + "\t" + approx + "\t" + (double) error / exact));
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (Map.Entry<String, double[]> entry : errors.entrySet()) {
+                CountMinSketch sketch = sketches.get(entry.getKey());
+                double[] stats = entry.getValue();
+                outputs.write(REPORT_OUTPUT, new Text("summary " + sliceNames.get(entry.getKey())), new Text(String.format(
+                        "sampled=%d\ttotal=%d\tmeanRelativeError=%.6f\tmaxAbsoluteError=%.0f\terrorBound=%.1f\twithinBound=%.4f",
+                        (long) stats[0], sketch.totalCount(), stats[1] / stats[0], stats[2], sketch.errorBound(), stats[3] / stats[0])));
+            }
+            outputs.close();
+        }
+    }
+
+    /**
+     * Loads the merged sketches written by this step, keyed by "lexemes" and "features"
+     */
+    public static Map<String, SlicedSketch> readSketches(Configuration conf, Path outputDir) throws IOException {
+        Map<String, Map<Integer, CountMinSketch>> slices = new HashMap<>();
+        FileSystem fs = outputDir.getFileSystem(conf);
+        for (FileStatus status : fs.globStatus(new Path(outputDir, SKETCH_OUTPUT + "-r-*"))) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()))) {
+                Text name = new Text();
+                CountMinSketch sketch = new CountMinSketch();
+                while (reader.next(name, sketch)) {
+                    String[] parts = name.toString().split("\t");
+                    slices.computeIfAbsent(parts[0], k -> new HashMap<>()).put(Integer.parseInt(parts[1]), sketch);
+                    sketch = new CountMinSketch();
+                }
+            }
+        }
+        Map<String, SlicedSketch> sketches = new HashMap<>();
+        for (Map.Entry<String, Map<Integer, CountMinSketch>> entry : slices.entrySet()) {
+            CountMinSketch[] parts = new CountMinSketch[entry.getValue().size()];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = entry.getValue().get(i);
+                if (parts[i] == null)
+                    throw new IOException("Slice " + i + " of the " + entry.getKey() + " sketch is missing under " + outputDir);
+            }
+            sketches.put(entry.getKey(), new SlicedSketch(parts));
+        }
+        return sketches;
+    }
+
+    /**
+     * Every map emits all slices of its two sketches once, the sampled exact counts are negligible
+     */
+    public static long estimateShuffleBytes(Configuration conf, long inputBytes, Counters upstream) {
+        long maps = Math.max(1, inputBytes / ShardInputFormat.splitSize(conf, inputBytes));
+        int slices = conf.getInt(SLICES, 8);
+        return maps * 2 * slices * (long) sliceWidth(conf, slices) * depth(conf) * Long.BYTES;
+    }
+
+    public static Job createJob(Configuration conf, List<Path> inputs, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "Sketch marginals");
+        job.setJarByClass(SketchMarginals.class);
+        job.setMapperClass(MapperClass.class);
+        job.setReducerClass(ReducerClass.class);
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(MarginalWritable.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        // Every reducer merges one slice of each sketch
+        job.setPartitionerClass(PartitionerClass.class);
+        job.setNumReduceTasks(conf.getInt(SLICES, 8));
+        job.getConfiguration().setBoolean(JobTuner.FIXED_REDUCERS, true);
+
+        job.setInputFormatClass(ShardInputFormat.class);
+        FileInputFormat.setInputPaths(job, inputs.toArray(new Path[0]));
+        FileOutputFormat.setOutputPath(job, output);
+        LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+        MultipleOutputs.addNamedOutput(job, SKETCH_OUTPUT, SequenceFileOutputFormat.class, Text.class, CountMinSketch.class);
+        MultipleOutputs.addNamedOutput(job, REPORT_OUTPUT, TextOutputFormat.class, Text.class, Text.class);
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] paths = new GenericOptionsParser(conf, args).getRemainingArgs();
+        Job job = createJob(conf, List.of(new Path(paths[0])), new Path(paths[1]));
+        System.exit(StepMetrics.run(job) ? 0 : 1);
+    }
+}
@@ -0,0 +1,199 @@
+package steps;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Content-addressed cache of stage outputs on S3.
+ * <p>
+ * A stage writes its output to {@code <cache.uri>/<stage>/<key>/}, where the key is a SHA-256
+ * over the stage name, the code version, the stage's configuration and a fingerprint of its
+ * inputs (path, length and modification time of every input file, or the key of an upstream
+ * stage). A rerun whose key already has a {@code _SUCCESS} marker skips the stage and reads
+ * the cached output instead.
+ * <p>
+ * Every use of an entry rewrites its {@code _LAST_USED} marker. {@link #evict()} deletes entries
+ * not used for {@code cache.max.age.days}, always keeping the {@code cache.keep} most recently
+ * used complete entries of every stage. Entries without {@code _SUCCESS}, left by failed
+ * attempts, are deleted once they are as old.
+ * <p>
+ * It runs inside the EMR step, so it only uses Hadoop's {@link FileSystem}; the step jar is
+ * thin and the AWS SDK behind {@link services.S3Service} is not on the cluster's classpath.
+ */
+public class StageCache {
+
+    public static final String CACHE_URI = "cache.uri";
+    public static final String CODE_VERSION = "cache.code.version";
+    public static final String MAX_AGE_DAYS = "cache.max.age.days";
+    public static final String KEEP = "cache.keep";
+
+    static final String SUCCESS = "_SUCCESS";
+    static final String LAST_USED = "_LAST_USED";
+
+    private final Configuration conf;
+    private final FileSystem fs;
+    private final Path root;
+
+    private StageCache(Configuration conf, Path root) throws IOException {
+        this.conf = conf;
+        this.root = root;
+        this.fs = root.getFileSystem(conf);
+    }
+
+    /**
+     * Returns null when no cache.uri is configured, which disables caching; a cache needs
+     * cache.code.version, or outputs of other code would be reused
+     */
+    public static StageCache create(Configuration conf) throws IOException {
+        String cacheUri = conf.get(CACHE_URI);
+        if (cacheUri == null)
+            return null;
+        if (conf.get(CODE_VERSION) == null)
+            throw new IllegalArgumentException(CACHE_URI + " is set without " + CODE_VERSION);
+        return new StageCache(conf, new Path(cacheUri));
+    }
+
+    /**
+     * @param inputs         files or directories read by the stage
+     * @param upstreamKeys   keys of cached stages whose output the stage reads
+     * @param configPrefixes configuration keys starting with one of these affect the stage's output
+     */
+    public String key(String stage, List<Path> inputs, List<String> upstreamKeys, String... configPrefixes) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, stage);
+        update(digest, conf.get(CODE_VERSION));
+
+        // Sorted so the key does not depend on the order options were given in
+        Map<String, String> settings = new TreeMap<>();
+        for (Entry<String, String> entry : conf)
+            for (String configPrefix : configPrefixes)
+                if (entry.getKey().startsWith(configPrefix))
+                    settings.put(entry.getKey(), entry.getValue());
+        settings.forEach((name, value) -> update(digest, name + "=" + value));
+
+        for (Path input : inputs) {
+            List<String> files = new ArrayList<>();
+            FileSystem fs = input.getFileSystem(conf);
+            RemoteIterator<LocatedFileStatus> iterator = fs.listFiles(input, true);
+            while (iterator.hasNext()) {
+                LocatedFileStatus status = iterator.next();
+                files.add(status.getPath() + "\t" + status.getLen() + "\t" + status.getModificationTime());
+            }
+            files.sort(null);
+            files.forEach(file -> update(digest, file));
+        }
+        upstreamKeys.forEach(key -> update(digest, key));
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    public Path output(String stage, String key) {
+        return new Path(new Path(root, stage), key);
+    }
+
+    public boolean contains(String stage, String key) throws IOException {
+        return fs.exists(new Path(output(stage, key), SUCCESS));
+    }
+
+    public void touch(String stage, String key) throws IOException {
+        try (FSDataOutputStream out = fs.create(new Path(output(stage, key), LAST_USED), true)) {
+            out.write(Instant.now().toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * The files of one entry, with the time it was last used
+     */
+    private static class CacheEntry {
+        final Path path;
+        boolean complete;
+        long lastUsed;
+        long lastModified;
+
+        CacheEntry(Path path) {
+            this.path = path;
+        }
+
+        long lastUsed() {
+            // Entries never touched (e.g. the run failed after the stage) count from their last write
+            return lastUsed == 0 ? lastModified : lastUsed;
+        }
+    }
+
+    public void evict() throws IOException {
+        long cutoff = Instant.now().minus(Duration.ofDays(conf.getInt(MAX_AGE_DAYS, 14))).toEpochMilli();
+        int keep = conf.getInt(KEEP, 2);
+        if (!fs.exists(root))
+            return;
+
+        Map<String, Map<String, CacheEntry>> entriesByStage = new HashMap<>();
+        String rootPath = fs.makeQualified(root).toUri().getPath();
+        String rootPrefix = rootPath.endsWith("/") ? rootPath : rootPath + "/";
+        RemoteIterator<LocatedFileStatus> files = fs.listFiles(root, true);
+        while (files.hasNext()) {
+            LocatedFileStatus file = files.next();
+            String relative = file.getPath().toUri().getPath();
+            if (!relative.startsWith(rootPrefix))
+                continue;
+            String[] parts = relative.substring(rootPrefix.length()).split("/");
+            if (parts.length < 3)
+                continue;
+            CacheEntry entry = entriesByStage.computeIfAbsent(parts[0], s -> new HashMap<>())
+                    .computeIfAbsent(parts[1], k -> new CacheEntry(output(parts[0], parts[1])));
+            String name = parts[parts.length - 1];
+            if (parts.length == 3 && name.equals(SUCCESS))
+                entry.complete = true;
+            if (parts.length == 3 && name.equals(LAST_USED))
+                entry.lastUsed = file.getModificationTime();
+            entry.lastModified = Math.max(entry.lastModified, file.getModificationTime());
+        }
+
+        for (Map<String, CacheEntry> stageEntries : entriesByStage.values()) {
+            List<CacheEntry> entries = new ArrayList<>(stageEntries.values());
+            entries.sort(Comparator.comparingLong(CacheEntry::lastUsed).reversed());
+            int kept = 0;
+            for (CacheEntry entry : entries) {
+                // Only complete entries count towards the ones to keep; a partial one is a failed attempt
+                if (entry.complete && kept < keep) {
+                    kept++;
+                    continue;
+                }
+                if (entry.lastUsed() > cutoff)
+                    continue;
+                System.out.printf("Evicting stale %scache entry %s\n", entry.complete ? "" : "incomplete ", entry.path);
+                fs.delete(entry.path, true);
+            }
+        }
+    }
+}
@@ -0,0 +1,625 @@
+package steps;
+
+import metrics.PipelineCounter;
+import metrics.StepMetrics;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import utils.Biarc;
+import utils.Hashing;
+import utils.MarginalCounts;
+import utils.Sampling;
+import utils.ShardInputFormat;
+import utils.SparseVector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the feature vector of every lexeme from the biarcs and the marginals.
+ * <p>
+ * The map output key is (lexeme, feature hash) and the shuffle sorts it by lexeme, then by
+ * feature id (secondary sort), while partitioning and grouping by lexeme only. The reducer
+ * therefore sees all counts of one feature next to each other, in the order the vector
+ * stores them, and needs no per-lexeme map. Weights are computed as each feature completes:
+ * <ul>
+ *   <li>freq = count(l,f)</li>
+ *   <li>prob = count(l,f) / count(l)</li>
+ *   <li>pmi = log2(count(l,f) * N / (count(l) * count(f)))</li>
+ *   <li>ttest = (P(l,f) - P(l)P(f)) / sqrt(P(l)P(f))</li>
+ * </ul>
+ * Features of very frequent lexemes ("be", "have") do not fit the reducer heap, so the
+ * finished features are buffered up to {@code vectors.spill.bytes} and then spilled as a run
+ * to local disk. Since the features arrive sorted, the runs are consecutive id ranges and
+ * merging them is a sequential copy, done straight into the output file by {@link VectorOutputFormat}.
+ * <p>
+ * The stages after this one (LSH, gold pairs, the index) read every vector as a whole
+ * {@link SparseVector}, so a vector is capped at {@code vectors.max.features} features before
+ * it is written: beyond that only the most frequent features are kept, in id order. The pruned
+ * vectors and features are counted in VECTORS_PRUNED and FEATURES_PRUNED. That cap, not the
+ * spill budget, bounds the memory a single lexeme needs downstream.
+ * <p>
+ * The marginals come from {@link ExactMarginals}, or from {@link SketchMarginals} with
+ * {@code vectors.marginals.exact=false}, when the vocabulary is too large to count exactly.
+ * <p>
+ * Input: the corpus shards. Output: SequenceFile of (lexeme, {@link SparseVector}).
+ * <p>
+ * Usage: {@code VectorBuilder [-D vectors.spill.bytes=..] [-D vectors.max.features=..] [-D vectors.marginals.exact=..]
+ * <input> <marginals dir> <output>}
+ */
+public class VectorBuilder {
+
+    public static final String MARGINALS = "vectors.marginals";
+    public static final String SPILL_BYTES = "vectors.spill.bytes";
+    public static final String MAX_FEATURES = "vectors.max.features";
+    public static final String EXACT_MARGINALS = "vectors.marginals.exact";
+
+    /**
+     * Lexeme and the full 64 bit hash of a feature; the vector id is its lower half
+     */
+    public static class FeatureKey implements WritableComparable<FeatureKey> {
+        final Text lexeme = new Text();
+        long feature;
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            lexeme.write(out);
+            out.writeLong(feature);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            lexeme.readFields(in);
+            feature = in.readLong();
+        }
+
+        @Override
+        public int compareTo(FeatureKey other) {
+            int cmp = lexeme.compareTo(other.lexeme);
+            return cmp != 0 ? cmp : compareFeatures(feature, other.feature);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof FeatureKey && compareTo((FeatureKey) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return lexeme.hashCode() * 31 + Long.hashCode(feature);
+        }
+    }
+
+    /**
+     * Orders by vector id first; features whose ids collide stay adjacent and share one slot
+     */
+    static int compareFeatures(long a, long b) {
+        int cmp = Integer.compare((int) a, (int) b);
+        return cmp != 0 ? cmp : Long.compare(a, b);
+    }
+
+    /**
+     * Byte-level comparison of serialized keys, by lexeme and optionally by feature
+     */
+    private static int compareSerialized(byte[] b1, int s1, byte[] b2, int s2, boolean features) {
+        try {
+            int prefix1 = WritableUtils.decodeVIntSize(b1[s1]);
+            int prefix2 = WritableUtils.decodeVIntSize(b2[s2]);
+            int length1 = WritableComparator.readVInt(b1, s1);
+            int length2 = WritableComparator.readVInt(b2, s2);
+            int cmp = WritableComparator.compareBytes(b1, s1 + prefix1, length1, b2, s2 + prefix2, length2);
+            if (cmp != 0 || !features)
+                return cmp;
+            return compareFeatures(WritableComparator.readLong(b1, s1 + prefix1 + length1),
+                    WritableComparator.readLong(b2, s2 + prefix2 + length2));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public static class SortComparator extends WritableComparator {
+        public SortComparator() {
+            super(FeatureKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareSerialized(b1, s1, b2, s2, true);
+        }
+    }
+
+    public static class GroupingComparator extends WritableComparator {
+        public GroupingComparator() {
+            super(FeatureKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareSerialized(b1, s1, b2, s2, false);
+        }
+    }
+
+    public static class LexemePartitioner extends Partitioner<FeatureKey, LongWritable> {
+        @Override
+        public int getPartition(FeatureKey key, LongWritable value, int numPartitions) {
+            return (key.lexeme.hashCode() & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    public static class MapperClass extends Mapper<LongWritable, Text, FeatureKey, LongWritable> {
+
+        private final Biarc biarc = new Biarc();
+        private final FeatureKey featureKey = new FeatureKey();
+        private final LongWritable count = new LongWritable();
+        private Sampling sampling;
+
+        @Override
+        protected void setup(Context context) {
+            // Has to match the marginals, which are sketched from the same sample
+            sampling = Sampling.create(context.getConfiguration());
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String line = value.toString();
+            if (!sampling.keep(line)) {
+                context.getCounter(PipelineCounter.RECORDS_SAMPLED_OUT).increment(1);
+                return;
+            }
+            if (!biarc.parse(line)) {
+                context.getCounter(PipelineCounter.RECORDS_FILTERED).increment(1);
+                return;
+            }
+            context.getCounter(PipelineCounter.RECORDS_PARSED).increment(1);
+            count.set(sampling.scale(biarc.count));
+            for (int i = 0; i < biarc.lexemes.size(); i++) {
+                featureKey.lexeme.set(biarc.lexemes.get(i));
+                featureKey.feature = Hashing.hash64(biarc.features.get(i));
+                context.write(featureKey, count);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounter.STEM_CACHE_HITS).increment(biarc.getCacheHits());
+            context.getCounter(PipelineCounter.STEM_CACHE_MISSES).increment(biarc.getCacheMisses());
+        }
+    }
+
+    /**
+     * Sums the counts of one (lexeme, feature) key; the combiner groups by the full key
+     */
+    public static class CombinerClass extends Reducer<FeatureKey, LongWritable, FeatureKey, LongWritable> {
+
+        private final LongWritable sum = new LongWritable();
+
+        @Override
+        public void reduce(FeatureKey key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            long total = 0;
+            for (LongWritable value : values)
+                total += value.get();
+            sum.set(total);
+            context.write(key, sum);
+        }
+    }
+
+    /**
+     * The features of one lexeme in id order: the last few in memory, the rest in sorted runs on local disk.
+     * <p>
+     * Runs use the column layout of {@link SparseVector#write}, ids first and then one block
+     * per measure, so the output is assembled by copying byte ranges of the runs.
+     */
+    public static class SpilledVector implements SequenceFile.ValueBytes {
+
+        private static final int FEATURE_BYTES = Integer.BYTES + SparseVector.MEASURES * Double.BYTES;
+
+        private final int capacity;
+        private int[] ids = new int[1024];
+        private double[][] weights = new double[SparseVector.MEASURES][1024];
+        private int buffered;
+        private final List<File> runs = new ArrayList<>();
+        private final List<Integer> runSizes = new ArrayList<>();
+        private int size;
+
+        SpilledVector(long budgetBytes) {
+            capacity = (int) Math.max(1024, Math.min(budgetBytes / FEATURE_BYTES, Integer.MAX_VALUE - 8));
+        }
+
+        /**
+         * Appends a feature, ids have to be added in ascending order; returns true if that spilled a run
+         */
+        boolean add(int id, double[] featureWeights) throws IOException {
+            boolean spilled = false;
+            if (buffered == capacity) {
+                spill();
+                spilled = true;
+            } else if (buffered == ids.length) {
+                // Grows up to the budget, most lexemes never get close to it
+                int grown = (int) Math.min(capacity, 2L * ids.length);
+                ids = Arrays.copyOf(ids, grown);
+                for (int m = 0; m < SparseVector.MEASURES; m++)
+                    weights[m] = Arrays.copyOf(weights[m], grown);
+            }
+            ids[buffered] = id;
+            for (int m = 0; m < SparseVector.MEASURES; m++)
+                weights[m][buffered] = featureWeights[m];
+            buffered++;
+            size++;
+            return spilled;
+        }
+
+        /**
+         * Keeps only the maxFeatures most frequent features, still in id order; ties at the
+         * threshold are kept by ascending id. Streams over the runs, so it needs memory for
+         * maxFeatures frequencies only. Returns the number of features dropped.
+         */
+        int prune(int maxFeatures) throws IOException {
+            if (size <= maxFeatures)
+                return 0;
+            if (buffered > 0)
+                spill();
+            List<File> oldRuns = new ArrayList<>(runs);
+            List<Integer> oldSizes = new ArrayList<>(runSizes);
+            int oldSize = size;
+
+            // Min-heap of the largest frequencies seen so far, its root ends up as the threshold
+            double[] heap = new double[maxFeatures];
+            int heapSize = 0;
+            for (int r = 0; r < oldRuns.size(); r++) {
+                int runSize = oldSizes.get(r);
+                try (DataInputStream frequencies = open(oldRuns.get(r), (long) runSize * (Integer.BYTES + SparseVector.FREQUENCY * Double.BYTES))) {
+                    for (int i = 0; i < runSize; i++) {
+                        double frequency = frequencies.readDouble();
+                        if (heapSize < maxFeatures)
+                            siftUp(heap, heapSize++, frequency);
+                        else if (frequency > heap[0])
+                            siftDown(heap, heapSize, frequency);
+                    }
+                }
+            }
+            double threshold = heapSize == 0 ? 0 : heap[0];
+            int ties = 0;
+            for (int i = 0; i < heapSize; i++)
+                if (heap[i] == threshold)
+                    ties++;
+
+            runs.clear();
+            runSizes.clear();
+            size = 0;
+            double[] featureWeights = new double[SparseVector.MEASURES];
+            for (int r = 0; r < oldRuns.size(); r++) {
+                File run = oldRuns.get(r);
+                int runSize = oldSizes.get(r);
+                DataInputStream[] columns = new DataInputStream[1 + SparseVector.MEASURES];
+                try {
+                    columns[0] = open(run, 0);
+                    for (int m = 0; m < SparseVector.MEASURES; m++)
+                        columns[1 + m] = open(run, (long) runSize * (Integer.BYTES + m * Double.BYTES));
+                    for (int i = 0; i < runSize; i++) {
+                        int id = columns[0].readInt();
+                        for (int m = 0; m < SparseVector.MEASURES; m++)
+                            featureWeights[m] = columns[1 + m].readDouble();
+                        double frequency = featureWeights[SparseVector.FREQUENCY];
+                        if (frequency > threshold || frequency == threshold && ties-- > 0)
+                            add(id, featureWeights);
+                    }
+                } finally {
+                    for (DataInputStream column : columns)
+                        if (column != null)
+                            column.close();
+                    run.delete();
+                }
+            }
+            return oldSize - size;
+        }
+
+        private static void siftUp(double[] heap, int index, double value) {
+            while (index > 0 && heap[(index - 1) / 2] > value) {
+                heap[index] = heap[(index - 1) / 2];
+                index = (index - 1) / 2;
+            }
+            heap[index] = value;
+        }
+
+        /**
+         * Replaces the root with a larger value
+         */
+        private static void siftDown(double[] heap, int heapSize, double value) {
+            int index = 0;
+            while (2 * index + 1 < heapSize) {
+                int child = 2 * index + 1;
+                if (child + 1 < heapSize && heap[child + 1] < heap[child])
+                    child++;
+                if (heap[child] >= value)
+                    break;
+                heap[index] = heap[child];
+                index = child;
+            }
+            heap[index] = value;
+        }
+
+        private void spill() throws IOException {
+            // YARN points java.io.tmpdir into the container's local directories
+            File run = File.createTempFile("vector-run-", ".bin");
+            runs.add(run);
+            runSizes.add(buffered);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+                for (int i = 0; i < buffered; i++)
+                    out.writeInt(ids[i]);
+                for (int m = 0; m < SparseVector.MEASURES; m++)
+                    for (int i = 0; i < buffered; i++)
+                        out.writeDouble(weights[m][i]);
+            }
+            buffered = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            for (File run : runs)
+                run.delete();
+            runs.clear();
+            runSizes.clear();
+            buffered = 0;
+            size = 0;
+        }
+
+        @Override
+        public int getSize() {
+            return Integer.BYTES + size * FEATURE_BYTES;
+        }
+
+        @Override
+        public void writeUncompressedBytes(DataOutputStream out) throws IOException {
+            byte[] copyBuffer = new byte[1 << 16];
+            out.writeInt(size);
+            // Block -1 holds the ids, block m the weights of measure m
+            for (int block = -1; block < SparseVector.MEASURES; block++) {
+                for (int r = 0; r < runs.size(); r++) {
+                    int runSize = runSizes.get(r);
+                    long offset = block < 0 ? 0 : (long) runSize * (Integer.BYTES + block * Double.BYTES);
+                    long length = (long) runSize * (block < 0 ? Integer.BYTES : Double.BYTES);
+                    copy(runs.get(r), offset, length, out, copyBuffer);
+                }
+                for (int i = 0; i < buffered; i++) {
+                    if (block < 0)
+                        out.writeInt(ids[i]);
+                    else
+                        out.writeDouble(weights[block][i]);
+                }
+            }
+        }
+
+        /**
+         * A buffered stream over a run, positioned at the given offset
+         */
+        private static DataInputStream open(File run, long offset) throws IOException {
+            InputStream in = new BufferedInputStream(new FileInputStream(run), 1 << 16);
+            try {
+                long skipped = 0;
+                while (skipped < offset) {
+                    long step = in.skip(offset - skipped);
+                    // skip() may return 0 before the end too, a read tells the two apart
+                    if (step == 0 && in.read() < 0)
+                        throw new IOException("Spill run " + run + " is truncated");
+                    skipped += step == 0 ? 1 : step;
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            return new DataInputStream(in);
+        }
+
+        private static void copy(File run, long offset, long length, DataOutputStream out, byte[] buffer) throws IOException {
+            try (InputStream in = open(run, offset)) {
+                while (length > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                    if (read < 0)
+                        throw new IOException("Spill run " + run + " is truncated");
+                    out.write(buffer, 0, read);
+                    length -= read;
+                }
+            }
+        }
+
+        @Override
+        public void writeCompressedBytes(DataOutputStream out) {
+            throw new IllegalArgumentException("Spilled vectors are only written uncompressed");
+        }
+    }
+
+    /**
+     * Writes the spilled vectors into an uncompressed SequenceFile of (Text, {@link SparseVector}),
+     * streaming each value from its runs instead of materializing it. Compressed SequenceFiles
+     * buffer the whole record in memory, which is what the spilling avoids.
+     */
+    public static class VectorOutputFormat extends FileOutputFormat<Text, SpilledVector> {
+
+        @Override
+        public RecordWriter<Text, SpilledVector> getRecordWriter(TaskAttemptContext context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                    SequenceFile.Writer.file(getDefaultWorkFile(context, "")),
+                    SequenceFile.Writer.keyClass(Text.class),
+                    SequenceFile.Writer.valueClass(SparseVector.class),
+                    SequenceFile.Writer.compression(SequenceFile.CompressionType.NONE));
+            return new RecordWriter<Text, SpilledVector>() {
+                private final DataOutputBuffer keyBuffer = new DataOutputBuffer();
+
+                @Override
+                public void write(Text key, SpilledVector value) throws IOException {
+                    keyBuffer.reset();
+                    key.write(keyBuffer);
+                    writer.appendRaw(keyBuffer.getData(), 0, keyBuffer.getLength(), value);
+                }
+
+                @Override
+                public void close(TaskAttemptContext context) throws IOException {
+                    writer.close();
+                }
+            };
+        }
+    }
+
+    public static class ReducerClass extends Reducer<FeatureKey, LongWritable, Text, SpilledVector> {
+
+        private final Text lexeme = new Text();
+        private final double[] featureWeights = new double[SparseVector.MEASURES];
+        private SpilledVector vector;
+        private int maxFeatures;
+        private MarginalCounts lexemes;
+        private MarginalCounts features;
+        private double total;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            Path marginals = new Path(conf.get(MARGINALS));
+            Map<String, ? extends MarginalCounts> counts = conf.getBoolean(EXACT_MARGINALS, true)
+                    ? ExactMarginals.readCounts(conf, marginals) : SketchMarginals.readSketches(conf, marginals);
+            lexemes = counts.get("lexemes");
+            features = counts.get("features");
+            if (lexemes == null || features == null)
+                throw new IOException("No marginals under " + marginals);
+            total = lexemes.totalCount();
+            vector = new SpilledVector(conf.getLong(SPILL_BYTES, 64L << 20));
+            maxFeatures = conf.getInt(MAX_FEATURES, 1 << 18);
+        }
+
+        @Override
+        public void reduce(FeatureKey key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            // Hadoop updates the key in place while iterating, so key.feature follows the values
+            lexeme.set(key.lexeme);
+            double lexemeCount = lexemes.estimate(lexeme.toString());
+            int current = 0;
+            long previousHash = 0;
+            long pairCount = 0;
+            long featureCount = 0;
+            boolean started = false;
+
+            for (LongWritable value : values) {
+                int id = (int) key.feature;
+                if (started && id != current) {
+                    addFeature(current, pairCount, lexemeCount, featureCount, context);
+                    pairCount = 0;
+                    featureCount = 0;
+                }
+                // Colliding features share an id, their marginals are added up like their counts
+                if (!started || id != current || key.feature != previousHash)
+                    featureCount += features.estimate(key.feature);
+                current = id;
+                previousHash = key.feature;
+                started = true;
+                pairCount += value.get();
+            }
+            if (started)
+                addFeature(current, pairCount, lexemeCount, featureCount, context);
+            int pruned = vector.prune(maxFeatures);
+            if (pruned > 0) {
+                context.getCounter(PipelineCounter.VECTORS_PRUNED).increment(1);
+                context.getCounter(PipelineCounter.FEATURES_PRUNED).increment(pruned);
+            }
+
+            context.getCounter(PipelineCounter.VECTORS).increment(1);
+            context.getCounter(PipelineCounter.VECTOR_FEATURES).increment(vector.size());
+            context.write(lexeme, vector);
+            vector.clear();
+        }
+
+        private void addFeature(int id, long pairCount, double lexemeCount, double featureCount, Context context) throws IOException {
+            // Marginals never undercount, but a single key can still exceed a colliding marginal
+            lexemeCount = Math.max(lexemeCount, pairCount);
+            featureCount = Math.max(featureCount, pairCount);
+            double joint = pairCount / total;
+            double independent = lexemeCount / total * (featureCount / total);
+            featureWeights[SparseVector.FREQUENCY] = pairCount;
+            featureWeights[SparseVector.PROBABILITY] = pairCount / lexemeCount;
+            featureWeights[SparseVector.PMI] = Math.log(joint / independent) / Math.log(2);
+            featureWeights[SparseVector.T_TEST] = (joint - independent) / Math.sqrt(independent);
+            if (vector.add(id, featureWeights))
+                context.getCounter(PipelineCounter.VECTOR_SPILLS).increment(1);
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            if (vector != null)
+                vector.clear();
+        }
+    }
+
+    // Map output bytes per byte of gzip-compressed biarcs, used when the marginals' counters are missing
+    private static final double FALLBACK_SHUFFLE_RATIO = 3;
+    // Lexeme, feature hash, count and the record framing of one map output record
+    private static final int PAIR_BYTES = 28;
+
+    /**
+     * Every lexeme/feature pair the marginals stage counted becomes one map output record
+     */
+    public static long estimateShuffleBytes(Configuration conf, long inputBytes, Counters upstream) {
+        long pairs = upstream == null ? 0 : upstream.findCounter(PipelineCounter.LEXEME_FEATURE_PAIRS).getValue();
+        return pairs > 0 ? pairs * PAIR_BYTES : (long) (inputBytes * FALLBACK_SHUFFLE_RATIO);
+    }
+
+    public static Job createJob(Configuration conf, List<Path> inputs, Path marginals, Path output) throws IOException {
+        Job job = Job.getInstance(conf, "Vector builder");
+        job.setJarByClass(VectorBuilder.class);
+        job.getConfiguration().set(MARGINALS, marginals.toString());
+        job.setMapperClass(MapperClass.class);
+        job.setCombinerClass(CombinerClass.class);
+        job.setReducerClass(ReducerClass.class);
+        job.setMapOutputKeyClass(FeatureKey.class);
+        job.setMapOutputValueClass(LongWritable.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(SparseVector.class);
+
+        // Secondary sort: by lexeme and feature id, but one reduce call per lexeme
+        job.setPartitionerClass(LexemePartitioner.class);
+        job.setSortComparatorClass(SortComparator.class);
+        job.setGroupingComparatorClass(GroupingComparator.class);
+
+        job.setInputFormatClass(ShardInputFormat.class);
+        FileInputFormat.setInputPaths(job, inputs.toArray(new Path[0]));
+        job.setOutputFormatClass(VectorOutputFormat.class);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] paths = new GenericOptionsParser(conf, args).getRemainingArgs();
+        Job job = createJob(conf, List.of(new Path(paths[0])), new Path(paths[1]), new Path(paths[2]));
+        System.exit(StepMetrics.run(job) ? 0 : 1);
+    }
+}
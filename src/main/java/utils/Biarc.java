@@ -0,0 +1,120 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parser for a single line of the Google syntactic n-grams biarcs dataset.
+ * <p>
+ * A line has the form {@code head_word \t syntactic-ngram \t total_count \t counts_by_year},
+ * where every token of the n-gram is {@code word/pos-tag/dep-label/head-index}.
+ * For every dependency edge the stemmed head word is the lexeme and the stemmed
+ * dependent word joined with the dependency label is the feature.
+ * The parser keeps its buffers and an LRU cache of stems between lines, so a mapper
+ * should reuse one instance.
+ */
+public class Biarc {
+
+    private static final int STEM_CACHE_SIZE = 100_000;
+
+    private final Stemmer stemmer = new Stemmer();
+    private final Map<String, String> stems = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > STEM_CACHE_SIZE;
+        }
+    };
+    private long cacheHits;
+    private long cacheMisses;
+    private final List<String> words = new ArrayList<>();
+    private final List<String> labels = new ArrayList<>();
+    private final List<Integer> heads = new ArrayList<>();
+
+    public final List<String> lexemes = new ArrayList<>();
+    public final List<String> features = new ArrayList<>();
+    public long count;
+
+    /**
+     * Parses a line into lexeme/feature pairs, returns false if the line is malformed
+     */
+    public boolean parse(String line) {
+        lexemes.clear();
+        features.clear();
+        words.clear();
+        labels.clear();
+        heads.clear();
+
+        String[] columns = line.split("\t");
+        if (columns.length < 3)
+            return false;
+        try {
+            count = Long.parseLong(columns[2]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        for (String token : columns[1].split(" ")) {
+            // Words may contain '/', so the tag fields are taken from the end
+            int headSep = token.lastIndexOf('/');
+            int labelSep = token.lastIndexOf('/', headSep - 1);
+            int posSep = token.lastIndexOf('/', labelSep - 1);
+            if (posSep <= 0)
+                return false;
+            try {
+                heads.add(Integer.parseInt(token.substring(headSep + 1)));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            words.add(token.substring(0, posSep));
+            labels.add(token.substring(labelSep + 1, headSep));
+        }
+
+        for (int i = 0; i < words.size(); i++) {
+            int head = heads.get(i) - 1;
+            if (head < 0 || head >= words.size())
+                continue;
+            String lexeme = stem(words.get(head));
+            String dependent = stem(words.get(i));
+            if (lexeme == null || dependent == null)
+                continue;
+            lexemes.add(lexeme);
+            features.add(dependent + "-" + labels.get(i));
+        }
+        return !lexemes.isEmpty();
+    }
+
+    /**
+     * Lower-cases and stems a word, returns null for words that are not purely alphabetic
+     */
+    public String stem(String word) {
+        String cached = stems.get(word);
+        if (cached != null) {
+            cacheHits++;
+            return cached;
+        }
+        if (word.isEmpty())
+            return null;
+        for (int i = 0; i < word.length(); i++) {
+            char ch = Character.toLowerCase(word.charAt(i));
+            if (ch < 'a' || ch > 'z')
+                return null;
+        }
+        for (int i = 0; i < word.length(); i++)
+            stemmer.add(Character.toLowerCase(word.charAt(i)));
+        stemmer.stem();
+        cacheMisses++;
+        String stem = stemmer.toString();
+        stems.put(word, stem);
+        return stem;
+    }
+
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+}
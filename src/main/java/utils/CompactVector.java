@@ -0,0 +1,273 @@
+package utils;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact encoding of a {@link SparseVector} for shuffles and storage.
+ * <p>
+ * The sorted feature ids are stored as varint deltas and the weights of every association
+ * measure are quantized into a fixed-width column:
+ * <ul>
+ *   <li>{@link Quantization#FLOAT16}: half precision of {@code weight / scale}, where scale is the
+ *   largest absolute weight of the measure; the error is at most {@code scale * 2^-11}</li>
+ *   <li>{@link Quantization#INT8}: 256 linear steps between the smallest and largest weight of
+ *   the measure; the error is at most half a step</li>
+ * </ul>
+ * Layout: {@code varint size, byte quantization, varint ids length, id deltas}, then per measure
+ * {@code float a, float b, codes}. The similarity kernels read it through {@link #cursor}, which
+ * decodes one id and one weight at a time from the bytes.
+ */
+public class CompactVector implements Writable, FeatureVector {
+
+    public enum Quantization {
+        FLOAT16(2), INT8(1);
+
+        final int width;
+
+        Quantization(int width) {
+            this.width = width;
+        }
+    }
+
+    private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+    static {
+        for (int i = 0; i < HALF_TO_FLOAT.length; i++)
+            HALF_TO_FLOAT[i] = halfToFloat((short) i);
+    }
+
+    private byte[] bytes = new byte[0];
+    private int length;
+    // Parsed from the header in parse()
+    private int size;
+    private Quantization quantization;
+    private int idsStart;
+    private int weightsStart;
+
+    public CompactVector() {
+    }
+
+    public static CompactVector encode(SparseVector vector, Quantization quantization) {
+        ByteArrayOutputStream ids = new ByteArrayOutputStream(vector.size() * 2);
+        long previous = 0;
+        for (int i = 0; i < vector.size(); i++) {
+            // Flip the sign bit so signed id order becomes unsigned order and deltas stay positive
+            long current = Integer.toUnsignedLong(vector.id(i) ^ Integer.MIN_VALUE);
+            writeVarLong(ids, current - previous);
+            previous = current;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + ids.size()
+                + SparseVector.MEASURES * (8 + vector.size() * quantization.width));
+        writeVarLong(out, vector.size());
+        out.write(quantization.ordinal());
+        writeVarLong(out, ids.size());
+        out.write(ids.toByteArray(), 0, ids.size());
+
+        ByteBuffer column = ByteBuffer.allocate(8 + vector.size() * quantization.width);
+        for (int m = 0; m < SparseVector.MEASURES; m++) {
+            column.clear();
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, scale = 0;
+            for (int i = 0; i < vector.size(); i++) {
+                double w = vector.weight(m, i);
+                min = Math.min(min, w);
+                max = Math.max(max, w);
+                scale = Math.max(scale, Math.abs(w));
+            }
+            // Codes are computed against the stored float parameters, so the bounds hold exactly
+            if (quantization == Quantization.FLOAT16) {
+                float storedScale = (float) scale;
+                column.putFloat(storedScale).putFloat(0);
+                for (int i = 0; i < vector.size(); i++)
+                    column.putShort(scale == 0 ? 0 : floatToHalf((float) (vector.weight(m, i) / storedScale)));
+            } else {
+                // Rounded down and up so the grid still covers [min, max]
+                float storedMin = (float) min > min ? Math.nextDown((float) min) : (float) min;
+                float step = max > storedMin ? Math.nextUp((float) ((max - storedMin) / 255)) : 0;
+                column.putFloat(storedMin).putFloat(step);
+                for (int i = 0; i < vector.size(); i++)
+                    column.put((byte) (step == 0 ? 0 : Math.round((vector.weight(m, i) - storedMin) / step)));
+            }
+            out.write(column.array(), 0, column.position());
+        }
+
+        CompactVector compact = new CompactVector();
+        compact.bytes = out.toByteArray();
+        compact.length = compact.bytes.length;
+        compact.parse();
+        return compact;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Encoded size in bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    private int columnStart(int measure) {
+        return weightsStart + measure * (8 + size * quantization.width);
+    }
+
+    @Override
+    public Cursor cursor(int measure) {
+        int column = columnStart(measure);
+        // FLOAT16 stores (scale, 0), INT8 stores (min, step)
+        float first = readFloat(column);
+        float second = readFloat(column + 4);
+        int codes = column + 8;
+        return new Cursor() {
+            private int i = -1;
+            private int position = idsStart;
+            private long current;
+
+            @Override
+            public boolean next() {
+                if (++i >= size)
+                    return false;
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[position++];
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                current += delta;
+                return true;
+            }
+
+            @Override
+            public int id() {
+                return (int) current ^ Integer.MIN_VALUE;
+            }
+
+            @Override
+            public double weight() {
+                if (quantization == Quantization.FLOAT16) {
+                    int offset = codes + 2 * i;
+                    int half = (bytes[offset] & 0xff) << 8 | bytes[offset + 1] & 0xff;
+                    return (double) first * HALF_TO_FLOAT[half];
+                }
+                return first + (double) second * (bytes[codes + i] & 0xff);
+            }
+        };
+    }
+
+    private float readFloat(int offset) {
+        return Float.intBitsToFloat((bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | bytes[offset + 3] & 0xff);
+    }
+
+    private void parse() {
+        int[] position = {0};
+        size = (int) readVarLong(position);
+        quantization = Quantization.values()[bytes[position[0]++]];
+        int idsLength = (int) readVarLong(position);
+        idsStart = position[0];
+        weightsStart = idsStart + idsLength;
+    }
+
+    private long readVarLong(int[] position) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * IEEE 754 half precision with round to nearest even, saturating at the largest finite half
+     */
+    static short floatToHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = bits >>> 16 & 0x8000;
+        int exponent = (bits >>> 23 & 0xff) - 127 + 15;
+        int mantissa = bits & 0x7fffff;
+        if (exponent >= 31)
+            return (short) (sign | 0x7bff);
+        if (exponent <= 0) {
+            if (exponent < -10)
+                return (short) sign;
+            // Subnormal: shift the implicit leading one into the mantissa
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (remainder > halfway || remainder == halfway && (half & 1) != 0)
+                half++;
+            return (short) (sign | half);
+        }
+        int half = exponent << 10 | mantissa >> 13;
+        int remainder = mantissa & 0x1fff;
+        if (remainder > 0x1000 || remainder == 0x1000 && (half & 1) != 0)
+            half++;
+        // A carry out of the mantissa correctly bumps the exponent; cap at the largest finite value
+        return (short) (sign | Math.min(half, 0x7bff));
+    }
+
+    static float halfToFloat(short half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = half >>> 10 & 0x1f;
+        int mantissa = half & 0x3ff;
+        if (exponent == 0) {
+            float magnitude = mantissa * 0x1p-24f;
+            return sign == 0 ? magnitude : -magnitude;
+        }
+        if (exponent == 31)
+            return Float.intBitsToFloat(sign | 0x7f800000 | mantissa << 13);
+        return Float.intBitsToFloat(sign | (exponent - 15 + 127) << 23 | mantissa << 13);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, length);
+        out.write(bytes, 0, length);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        length = WritableUtils.readVInt(in);
+        if (bytes.length < length)
+            bytes = new byte[length];
+        in.readFully(bytes, 0, length);
+        parse();
+    }
+
+    /**
+     * Deep copy, needed before keeping a vector that Hadoop will reuse for the next record
+     */
+    public CompactVector copy() {
+        CompactVector copy = new CompactVector();
+        copy.bytes = Arrays.copyOf(bytes, length);
+        copy.length = length;
+        copy.parse();
+        return copy;
+    }
+}
@@ -0,0 +1,143 @@
+package utils;
+
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Mergeable Count-Min sketch over string keys.
+ * <p>
+ * With width {@code ceil(e / epsilon)} and depth {@code ceil(ln(1 / delta))} an estimate
+ * never undercounts and overcounts by more than {@code epsilon * totalCount()} with
+ * probability at least {@code 1 - delta}. Conservative update tightens the overestimate
+ * of rare keys; sketches built that way are still safe to merge by addition.
+ */
+public class CountMinSketch implements Writable {
+
+    private int width;
+    private int depth;
+    private boolean conservative;
+    private long total;
+    private long[] table;
+
+    // Required by Hadoop for deserialization
+    public CountMinSketch() {
+    }
+
+    public CountMinSketch(double epsilon, double delta, boolean conservative) {
+        this((int) Math.ceil(Math.E / epsilon), (int) Math.ceil(Math.log(1 / delta)), conservative);
+    }
+
+    public CountMinSketch(int width, int depth, boolean conservative) {
+        if (width <= 0 || depth <= 0)
+            throw new IllegalArgumentException("Sketch dimensions must be positive: " + width + "x" + depth);
+        this.width = width;
+        this.depth = depth;
+        this.conservative = conservative;
+        this.table = new long[width * depth];
+    }
+
+    public void add(String key, long count) {
+        add(Hashing.hash64(key), count);
+    }
+
+    /**
+     * Adds to a key already hashed with {@link Hashing#hash64}
+     */
+    public void add(long hash, long count) {
+        total += count;
+        if (!conservative) {
+            for (int row = 0; row < depth; row++)
+                table[cell(hash, row)] += count;
+            return;
+        }
+        // Conservative update: only raise the counters that are below the new lower bound
+        long target = estimate(hash) + count;
+        for (int row = 0; row < depth; row++) {
+            int cell = cell(hash, row);
+            if (table[cell] < target)
+                table[cell] = target;
+        }
+    }
+
+    public long estimate(String key) {
+        return estimate(Hashing.hash64(key));
+    }
+
+    /**
+     * Estimate for a key already hashed with {@link Hashing#hash64}
+     */
+    public long estimate(long hash) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++)
+            min = Math.min(min, table[cell(hash, row)]);
+        return min;
+    }
+
+    /**
+     * Adds the counters of another sketch built with the same dimensions into this one
+     */
+    public void merge(CountMinSketch other) {
+        if (other.width != width || other.depth != depth)
+            throw new IllegalArgumentException("Cannot merge sketches of different dimensions");
+        for (int i = 0; i < table.length; i++)
+            table[i] += other.table[i];
+        total += other.total;
+    }
+
+    /**
+     * The sum of all counts added, which is exact
+     */
+    public long totalCount() {
+        return total;
+    }
+
+    /**
+     * The additive error bound that holds with probability 1 - delta
+     */
+    public double errorBound() {
+        return Math.E / width * total;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public boolean isConservative() {
+        return conservative;
+    }
+
+    private int cell(long hash, int row) {
+        // Kirsch-Mitzenmacher: derive the row hashes from the two halves of one 64 bit hash
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return row * width + Math.floorMod(h1 + row * h2, width);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(width);
+        out.writeInt(depth);
+        out.writeBoolean(conservative);
+        out.writeLong(total);
+        for (long counter : table)
+            out.writeLong(counter);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        width = in.readInt();
+        depth = in.readInt();
+        conservative = in.readBoolean();
+        total = in.readLong();
+        table = new long[width * depth];
+        for (int i = 0; i < table.length; i++)
+            table[i] = in.readLong();
+    }
+}
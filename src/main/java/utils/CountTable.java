@@ -0,0 +1,73 @@
+package utils;
+
+/**
+ * Exact counts keyed by {@link Hashing#hash64}, in an open addressing table of primitive longs.
+ * <p>
+ * Takes about 32 bytes per distinct key (two longs per slot, kept at most half full), so the
+ * vocabulary has to fit the task heap. Keys whose 64 bit hashes collide share one count.
+ */
+public class CountTable implements MarginalCounts {
+
+    private long[] keys = new long[1 << 10];
+    private long[] counts = new long[1 << 10];
+    // Slot 0 of the arrays is a valid slot, a count of 0 marks it as free
+    private int size;
+    private long total;
+
+    public void add(long hash, long count) {
+        if (count <= 0)
+            return;
+        total += count;
+        int slot = slot(keys, counts, hash);
+        if (counts[slot] != 0) {
+            counts[slot] += count;
+            return;
+        }
+        keys[slot] = hash;
+        counts[slot] = count;
+        if (++size > keys.length / 2)
+            grow();
+    }
+
+    private static int slot(long[] keys, long[] counts, long hash) {
+        int mask = keys.length - 1;
+        // hash64 is already mixed, its low bits are as good as any
+        int slot = (int) hash & mask;
+        while (counts[slot] != 0 && keys[slot] != hash)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void grow() {
+        long[] grownKeys = new long[keys.length * 2];
+        long[] grownCounts = new long[counts.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            if (counts[i] == 0)
+                continue;
+            int slot = slot(grownKeys, grownCounts, keys[i]);
+            grownKeys[slot] = keys[i];
+            grownCounts[slot] = counts[i];
+        }
+        keys = grownKeys;
+        counts = grownCounts;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long estimate(String key) {
+        return estimate(Hashing.hash64(key));
+    }
+
+    @Override
+    public long estimate(long hash) {
+        return counts[slot(keys, counts, hash)];
+    }
+
+    @Override
+    public long totalCount() {
+        return total;
+    }
+}
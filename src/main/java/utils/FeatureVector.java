@@ -0,0 +1,28 @@
+package utils;
+
+/**
+ * Read access to a lexeme's features in ascending id order, shared by the plain
+ * {@link SparseVector} and the encoded {@link CompactVector} so the similarity kernels
+ * can run on either without converting.
+ */
+public interface FeatureVector {
+
+    int size();
+
+    /**
+     * A fresh forward-only cursor over the features and their weights for one association measure
+     */
+    Cursor cursor(int measure);
+
+    interface Cursor {
+
+        /**
+         * Moves to the next feature, returns false once all features were visited
+         */
+        boolean next();
+
+        int id();
+
+        double weight();
+    }
+}
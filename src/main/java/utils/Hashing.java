@@ -0,0 +1,35 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fast non-cryptographic hashes shared by the sketches and the samplers.
+ * Values are stable across JVMs, so mappers on different nodes agree on them.
+ */
+public final class Hashing {
+
+    private Hashing() {
+    }
+
+    public static long hash64(String key) {
+        // FNV-1a followed by the MurmurHash3 finalizer
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * MurmurHash3 64 bit finalizer, spreads every input bit over the whole word
+     */
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
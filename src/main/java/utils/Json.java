@@ -0,0 +1,31 @@
+package utils;
+
+/**
+ * The bit of JSON writing shared by the reports and the query server, which build their output by hand.
+ */
+public final class Json {
+
+    private Json() {
+    }
+
+    /**
+     * A JSON string literal, with quotes, backslashes and control characters escaped
+     */
+    public static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '"' || ch == '\\')
+                quoted.append('\\').append(ch);
+            else if (ch == '\n')
+                quoted.append("\\n");
+            else if (ch == '\t')
+                quoted.append("\\t");
+            else if (ch < 0x20)
+                quoted.append(String.format("\\u%04x", (int) ch));
+            else
+                quoted.append(ch);
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,20 @@
+package utils;
+
+/**
+ * count(l) or count(f) of every key, as the association weights need them; either exact
+ * ({@link CountTable}) or sketched ({@link SlicedSketch}).
+ */
+public interface MarginalCounts {
+
+    /**
+     * The count of a key, never below its true count
+     */
+    long estimate(String key);
+
+    /**
+     * The count of a key hashed with {@link Hashing#hash64}
+     */
+    long estimate(long hash);
+
+    long totalCount();
+}
@@ -0,0 +1,42 @@
+package utils;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Deterministic sampling of corpus records, for experiments that do not need the full corpus.
+ * <p>
+ * A record is kept when the hash of its line falls below {@code sample.fraction}, so every
+ * run with the same fraction reads the same records and a smaller sample is a subset of a
+ * larger one. The counts of kept records are divided by the fraction, which keeps frequencies
+ * and marginals on the scale of the full corpus; probability, PMI and t-test are ratios of
+ * counts and are not affected by the scaling.
+ */
+public class Sampling {
+
+    public static final String FRACTION = "sample.fraction";
+
+    private final double fraction;
+
+    public Sampling(double fraction) {
+        if (!(fraction > 0 && fraction <= 1))
+            throw new IllegalArgumentException(FRACTION + " must be in (0, 1], got " + fraction);
+        this.fraction = fraction;
+    }
+
+    public static Sampling create(Configuration conf) {
+        return new Sampling(conf.getDouble(FRACTION, 1));
+    }
+
+    public boolean keep(String record) {
+        // The top 53 bits of the hash as a uniform double in [0, 1)
+        return fraction == 1 || (Hashing.hash64(record) >>> 11) * 0x1.0p-53 < fraction;
+    }
+
+    public long scale(long count) {
+        return fraction == 1 ? count : Math.round(count / fraction);
+    }
+
+    public double getFraction() {
+        return fraction;
+    }
+}
@@ -0,0 +1,134 @@
+package utils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileRecordReader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Input format for the many-shard n-gram corpus.
+ * <p>
+ * Packs many small shards into one split so a mapper does not pay a JVM start per file,
+ * while large shards that were converted by {@code ShardIngest} into block-compressed
+ * SequenceFiles are cut at their sync points. Both kinds can be mixed in one job; each
+ * file is read as text lines or as a SequenceFile of lines depending on its header.
+ * <p>
+ * The split size is {@code shards.split.size} when set. Otherwise it is derived from the
+ * total input size so the maps run in about {@code shards.waves} waves over
+ * {@code shards.nodes * shards.map.slots} containers.
+ */
+public class ShardInputFormat extends CombineFileInputFormat<LongWritable, Text> {
+
+    public static final String SPLIT_SIZE = "shards.split.size";
+    public static final String NODES = "shards.nodes";
+    public static final String MAP_SLOTS = "shards.map.slots";
+    public static final String WAVES = "shards.waves";
+
+    static final long MIN_SPLIT_SIZE = 32L << 20;
+    static final long MAX_SPLIT_SIZE = 1L << 30;
+
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+        Configuration conf = job.getConfiguration();
+        long total = 0;
+        if (conf.getLong(SPLIT_SIZE, 0) <= 0)
+            for (FileStatus status : listStatus(job))
+                total += status.getLen();
+        long splitSize = splitSize(conf, total);
+        setMaxSplitSize(splitSize);
+        // Leftover blocks of a node or rack are only grouped into their own split once they are this big
+        setMinSplitSizeNode(splitSize / 2);
+        setMinSplitSizeRack(splitSize / 2);
+        System.out.printf("Combining input into splits of %d MB\n", splitSize >> 20);
+        return super.getSplits(job);
+    }
+
+    /**
+     * The split size used for an input of the given total size
+     */
+    public static long splitSize(Configuration conf, long totalBytes) {
+        long splitSize = conf.getLong(SPLIT_SIZE, 0);
+        if (splitSize > 0)
+            return splitSize;
+        long containers = (long) conf.getInt(NODES, 4) * conf.getInt(MAP_SLOTS, 2) * conf.getInt(WAVES, 2);
+        return Math.max(MIN_SPLIT_SIZE, Math.min(MAX_SPLIT_SIZE, totalBytes / containers));
+    }
+
+    @Override
+    public RecordReader<LongWritable, Text> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException {
+        return new CombineFileRecordReader<>((CombineFileSplit) split, context, ShardRecordReader.class);
+    }
+
+    /**
+     * Reads one file of a combined split, picking the reader from the file's magic bytes
+     */
+    public static class ShardRecordReader extends RecordReader<LongWritable, Text> {
+
+        private final FileSplit fileSplit;
+        private RecordReader<LongWritable, Text> delegate;
+
+        public ShardRecordReader(CombineFileSplit split, TaskAttemptContext context, Integer index) throws IOException {
+            fileSplit = new FileSplit(split.getPath(index), split.getOffset(index), split.getLength(index), split.getLocations());
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+            delegate = isSequenceFile(fileSplit.getPath(), context.getConfiguration())
+                    ? new SequenceFileRecordReader<>()
+                    : new LineRecordReader();
+            delegate.initialize(fileSplit, context);
+        }
+
+        private static boolean isSequenceFile(Path path, Configuration conf) throws IOException {
+            byte[] magic = new byte[3];
+            try (FSDataInputStream in = path.getFileSystem(conf).open(path)) {
+                in.readFully(0, magic);
+            } catch (EOFException e) {
+                return false;
+            }
+            return magic[0] == 'S' && magic[1] == 'E' && magic[2] == 'Q';
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException, InterruptedException {
+            return delegate.nextKeyValue();
+        }
+
+        @Override
+        public LongWritable getCurrentKey() throws IOException, InterruptedException {
+            return delegate.getCurrentKey();
+        }
+
+        @Override
+        public Text getCurrentValue() throws IOException, InterruptedException {
+            return delegate.getCurrentValue();
+        }
+
+        @Override
+        public float getProgress() throws IOException, InterruptedException {
+            return delegate.getProgress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (delegate != null)
+                delegate.close();
+        }
+    }
+}
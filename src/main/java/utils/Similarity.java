@@ -0,0 +1,103 @@
+package utils;
+
+/**
+ * The six vector similarity measures, applied to each of the four association measures
+ * to form the 24 dimensional co-occurrence vector of a word pair.
+ * <p>
+ * All measures walk the two sorted feature lists once; features missing from one side
+ * count as weight 0.
+ */
+public final class Similarity {
+
+    public static final String[] ASSOCIATIONS = {"freq", "prob", "pmi", "ttest"};
+    public static final String[] MEASURES = {"manhattan", "euclidean", "cosine", "jaccard", "dice", "js"};
+    public static final int DIMENSIONS = ASSOCIATIONS.length * MEASURES.length;
+
+    private Similarity() {
+    }
+
+    /**
+     * Manhattan, euclidean and Jensen-Shannon are distances: lower means more similar
+     */
+    public static boolean isDistance(int measure) {
+        return measure == 0 || measure == 1 || measure == 5;
+    }
+
+    /**
+     * The name of one of the 24 dimensions, e.g. "pmi-cosine"
+     */
+    public static String dimensionName(int dimension) {
+        return ASSOCIATIONS[dimension / MEASURES.length] + "-" + MEASURES[dimension % MEASURES.length];
+    }
+
+    /**
+     * Returns the 24 scores ordered by association measure, then by similarity measure
+     */
+    public static double[] vector(FeatureVector a, FeatureVector b) {
+        double[] result = new double[DIMENSIONS];
+        for (int m = 0; m < SparseVector.MEASURES; m++)
+            score(a, b, m, result, m * MEASURES.length);
+        return result;
+    }
+
+    /**
+     * Writes the six similarity scores of one association measure into result[offset..offset+5]
+     */
+    public static void score(FeatureVector a, FeatureVector b, int measure, double[] result, int offset) {
+        double manhattan = 0, squared = 0, dot = 0, normA = 0, normB = 0;
+        double min = 0, max = 0, sum = 0, divergence = 0;
+
+        FeatureVector.Cursor x = a.cursor(measure);
+        FeatureVector.Cursor y = b.cursor(measure);
+        boolean hasX = x.next(), hasY = y.next();
+        while (hasX || hasY) {
+            double wx, wy;
+            if (!hasY || hasX && x.id() < y.id()) {
+                wx = x.weight();
+                wy = 0;
+                hasX = x.next();
+            } else if (!hasX || y.id() < x.id()) {
+                wx = 0;
+                wy = y.weight();
+                hasY = y.next();
+            } else {
+                wx = x.weight();
+                wy = y.weight();
+                hasX = x.next();
+                hasY = y.next();
+            }
+            manhattan += Math.abs(wx - wy);
+            squared += (wx - wy) * (wx - wy);
+            dot += wx * wy;
+            normA += wx * wx;
+            normB += wy * wy;
+            min += Math.min(wx, wy);
+            max += Math.max(wx, wy);
+            sum += wx + wy;
+            divergence += jensenShannonTerm(wx, wy);
+        }
+
+        result[offset] = manhattan;
+        result[offset + 1] = Math.sqrt(squared);
+        result[offset + 2] = normA == 0 || normB == 0 ? 0 : dot / Math.sqrt(normA * normB);
+        result[offset + 3] = max == 0 ? 0 : min / max;
+        result[offset + 4] = sum == 0 ? 0 : 2 * min / sum;
+        result[offset + 5] = divergence;
+    }
+
+    /**
+     * Contribution of one feature to D(a||m) + D(b||m) where m is the average of a and b.
+     * Non positive weights (e.g. negative PMI) carry no probability mass.
+     */
+    static double jensenShannonTerm(double x, double y) {
+        x = Math.max(x, 0);
+        y = Math.max(y, 0);
+        double mean = (x + y) / 2;
+        double term = 0;
+        if (x > 0)
+            term += x * Math.log(x / mean);
+        if (y > 0)
+            term += y * Math.log(y / mean);
+        return term;
+    }
+}
@@ -0,0 +1,42 @@
+package utils;
+
+/**
+ * Count-Min sketch split into independent slices, every key counted in the slice its hash picks.
+ * <p>
+ * The slices never share a key, so each one can be merged on a different reducer. A slice of
+ * width {@code w / n} sees about {@code 1 / n} of the total count, which keeps the expected
+ * overestimate of a key at {@code e / w * totalCount()}, as for one sketch of width {@code w}.
+ */
+public class SlicedSketch implements MarginalCounts {
+
+    private final CountMinSketch[] slices;
+
+    public SlicedSketch(CountMinSketch[] slices) {
+        this.slices = slices;
+    }
+
+    /**
+     * The slice of a key hashed with {@link Hashing#hash64}; remixed so it does not follow the cell hashes
+     */
+    public static int slice(long hash, int slices) {
+        return Math.floorMod(Hashing.mix(hash ^ 0x9e3779b97f4a7c15L), slices);
+    }
+
+    @Override
+    public long estimate(String key) {
+        return estimate(Hashing.hash64(key));
+    }
+
+    @Override
+    public long estimate(long hash) {
+        return slices[slice(hash, slices.length)].estimate(hash);
+    }
+
+    @Override
+    public long totalCount() {
+        long total = 0;
+        for (CountMinSketch slice : slices)
+            total += slice.totalCount();
+        return total;
+    }
+}
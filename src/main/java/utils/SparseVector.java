@@ -0,0 +1,132 @@
+package utils;
+
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Feature vector of a single lexeme.
+ * <p>
+ * Features are identified by a 32 bit hash of the feature string and kept sorted by it,
+ * so two vectors can be compared with a single merge pass. Every feature carries one
+ * weight per association measure, stored column-wise in {@code weights[measure][i]}.
+ */
+public class SparseVector implements Writable, FeatureVector {
+
+    public static final int MEASURES = 4;
+    public static final int FREQUENCY = 0;
+    public static final int PROBABILITY = 1;
+    public static final int PMI = 2;
+    public static final int T_TEST = 3;
+
+    private int size;
+    private int[] ids;
+    private double[][] weights;
+
+    public SparseVector() {
+        this(new int[0], new double[MEASURES][0]);
+    }
+
+    /**
+     * Wraps already sorted feature ids and their weights without copying
+     */
+    public SparseVector(int[] ids, double[][] weights) {
+        this.size = ids.length;
+        this.ids = ids;
+        this.weights = weights;
+    }
+
+    public static int featureId(String feature) {
+        return (int) Hashing.hash64(feature);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public int id(int i) {
+        return ids[i];
+    }
+
+    public double weight(int measure, int i) {
+        return weights[measure][i];
+    }
+
+    @Override
+    public Cursor cursor(int measure) {
+        return new Cursor() {
+            private int i = -1;
+
+            @Override
+            public boolean next() {
+                return ++i < size;
+            }
+
+            @Override
+            public int id() {
+                return ids[i];
+            }
+
+            @Override
+            public double weight() {
+                return weights[measure][i];
+            }
+        };
+    }
+
+    /**
+     * Deep copy, needed before keeping a vector that Hadoop will reuse for the next record
+     */
+    public SparseVector copy() {
+        double[][] copied = new double[MEASURES][];
+        for (int m = 0; m < MEASURES; m++)
+            copied[m] = Arrays.copyOf(weights[m], size);
+        return new SparseVector(Arrays.copyOf(ids, size), copied);
+    }
+
+    /**
+     * Sorts the features by id, used after filling the arrays in arbitrary order
+     */
+    public SparseVector sorted() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Integer.compare(ids[a], ids[b]));
+        int[] sortedIds = new int[size];
+        double[][] sortedWeights = new double[MEASURES][size];
+        for (int i = 0; i < size; i++) {
+            sortedIds[i] = ids[order[i]];
+            for (int m = 0; m < MEASURES; m++)
+                sortedWeights[m][i] = weights[m][order[i]];
+        }
+        return new SparseVector(sortedIds, sortedWeights);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++)
+            out.writeInt(ids[i]);
+        for (int m = 0; m < MEASURES; m++)
+            for (int i = 0; i < size; i++)
+                out.writeDouble(weights[m][i]);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        size = in.readInt();
+        if (ids.length < size) {
+            ids = new int[size];
+            weights = new double[MEASURES][size];
+        }
+        for (int i = 0; i < size; i++)
+            ids[i] = in.readInt();
+        for (int m = 0; m < MEASURES; m++)
+            for (int i = 0; i < size; i++)
+                weights[m][i] = in.readDouble();
+    }
+}
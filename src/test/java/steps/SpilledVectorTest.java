@@ -0,0 +1,116 @@
+package steps;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import utils.SparseVector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+class SpilledVectorTest {
+
+    private static SparseVector randomVector(Random random, int size) {
+        int[] ids = random.ints(size * 2L).distinct().limit(size).sorted().toArray();
+        double[][] weights = new double[SparseVector.MEASURES][size];
+        for (int m = 0; m < SparseVector.MEASURES; m++)
+            for (int i = 0; i < size; i++)
+                weights[m][i] = m == SparseVector.FREQUENCY ? 1 + random.nextInt(20) : random.nextGaussian();
+        return new SparseVector(ids, weights);
+    }
+
+    /**
+     * Returns the number of runs spilled
+     */
+    private static int addAll(VectorBuilder.SpilledVector spilled, SparseVector vector) throws IOException {
+        double[] weights = new double[SparseVector.MEASURES];
+        int spills = 0;
+        for (int i = 0; i < vector.size(); i++) {
+            for (int m = 0; m < SparseVector.MEASURES; m++)
+                weights[m] = vector.weight(m, i);
+            if (spilled.add(vector.id(i), weights))
+                spills++;
+        }
+        return spills;
+    }
+
+    private static byte[] written(SparseVector vector) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        vector.write(out);
+        return Arrays.copyOf(out.getData(), out.getLength());
+    }
+
+    private static byte[] written(VectorBuilder.SpilledVector vector) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        vector.writeUncompressedBytes(new DataOutputStream(bytes));
+        Assertions.assertEquals(vector.getSize(), bytes.size());
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void spilledRunsAreWrittenLikeTheSparseVector() throws IOException {
+        Random random = new Random(7);
+        // The smallest buffer holds 1024 features, so these sizes cover no run, a full buffer and several runs
+        for (int size : new int[]{0, 1, 1024, 1025, 2048, 5000}) {
+            SparseVector vector = randomVector(random, size);
+            // A tiny vectors.spill.bytes
+            VectorBuilder.SpilledVector spilled = new VectorBuilder.SpilledVector(1);
+            try {
+                Assertions.assertEquals(Math.max(0, (size - 1) / 1024), addAll(spilled, vector));
+                Assertions.assertEquals(size, spilled.size());
+                Assertions.assertArrayEquals(written(vector), written(spilled), "vector of " + size + " features");
+            } finally {
+                spilled.clear();
+            }
+        }
+    }
+
+    @Test
+    void clearedVectorCanBeReused() throws IOException {
+        Random random = new Random(11);
+        VectorBuilder.SpilledVector spilled = new VectorBuilder.SpilledVector(1);
+        try {
+            addAll(spilled, randomVector(random, 3000));
+            spilled.clear();
+            SparseVector vector = randomVector(random, 1500);
+            addAll(spilled, vector);
+            Assertions.assertArrayEquals(written(vector), written(spilled));
+        } finally {
+            spilled.clear();
+        }
+    }
+
+    @Test
+    void pruneKeepsTheMostFrequentFeaturesInIdOrder() throws IOException {
+        Random random = new Random(13);
+        SparseVector vector = randomVector(random, 5000);
+        int maxFeatures = 1500;
+        // Most frequent first, ties by ascending id, as prune() breaks them
+        int[] kept = IntStream.range(0, vector.size()).boxed()
+                .sorted(Comparator.comparingDouble((Integer i) -> -vector.weight(SparseVector.FREQUENCY, i)).thenComparingInt(i -> i))
+                .limit(maxFeatures).mapToInt(Integer::intValue).sorted().toArray();
+        int[] ids = new int[kept.length];
+        double[][] weights = new double[SparseVector.MEASURES][kept.length];
+        for (int k = 0; k < kept.length; k++) {
+            ids[k] = vector.id(kept[k]);
+            for (int m = 0; m < SparseVector.MEASURES; m++)
+                weights[m][k] = vector.weight(m, kept[k]);
+        }
+
+        VectorBuilder.SpilledVector spilled = new VectorBuilder.SpilledVector(1);
+        try {
+            addAll(spilled, vector);
+            Assertions.assertEquals(vector.size() - maxFeatures, spilled.prune(maxFeatures));
+            Assertions.assertEquals(maxFeatures, spilled.size());
+            Assertions.assertArrayEquals(written(new SparseVector(ids, weights)), written(spilled));
+            Assertions.assertEquals(0, spilled.prune(maxFeatures));
+        } finally {
+            spilled.clear();
+        }
+    }
+}
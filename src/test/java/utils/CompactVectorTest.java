@@ -0,0 +1,121 @@
+package utils;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+class CompactVectorTest {
+
+    private static SparseVector randomVector(Random random, int size, double low, double high) {
+        int[] ids = random.ints(size * 2L).distinct().limit(size).sorted().toArray();
+        double[][] weights = new double[SparseVector.MEASURES][ids.length];
+        for (int m = 0; m < SparseVector.MEASURES; m++)
+            for (int i = 0; i < ids.length; i++)
+                weights[m][i] = low + (high - low) * random.nextDouble();
+        return new SparseVector(ids, weights);
+    }
+
+    /**
+     * Checks every id, and every weight against the error bound the class documents
+     */
+    private static void assertWithinBound(SparseVector vector, CompactVector compact, CompactVector.Quantization quantization) {
+        Assertions.assertEquals(vector.size(), compact.size());
+        for (int m = 0; m < SparseVector.MEASURES; m++) {
+            double min = 0, max = 0, scale = 0;
+            for (int i = 0; i < vector.size(); i++) {
+                double w = vector.weight(m, i);
+                min = i == 0 ? w : Math.min(min, w);
+                max = i == 0 ? w : Math.max(max, w);
+                scale = Math.max(scale, Math.abs(w));
+            }
+            // FLOAT16: scale * 2^-11; INT8: half of one of 255 steps between min and max, which the
+            // float parameters can widen by a rounding of min
+            double bound = quantization == CompactVector.Quantization.FLOAT16
+                    ? scale * 0x1p-11 * (1 + 1e-6)
+                    : ((max - min) / 255 * (1 + 1e-6) + Math.ulp((float) min)) / 2;
+
+            FeatureVector.Cursor cursor = compact.cursor(m);
+            for (int i = 0; i < vector.size(); i++) {
+                Assertions.assertTrue(cursor.next());
+                Assertions.assertEquals(vector.id(i), cursor.id());
+                double error = Math.abs(cursor.weight() - vector.weight(m, i));
+                Assertions.assertTrue(error <= bound, String.format(
+                        "%s measure %d feature %d: %g decoded as %g, error %g above %g",
+                        quantization, m, i, vector.weight(m, i), cursor.weight(), error, bound));
+            }
+            Assertions.assertFalse(cursor.next());
+        }
+    }
+
+    private static CompactVector writeAndRead(CompactVector compact) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        compact.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        CompactVector read = new CompactVector();
+        read.readFields(in);
+        return read;
+    }
+
+    @Test
+    void randomVectorsStayWithinTheErrorBound() throws IOException {
+        Random random = new Random(42);
+        for (CompactVector.Quantization quantization : CompactVector.Quantization.values()) {
+            for (int round = 0; round < 50; round++) {
+                SparseVector vector = randomVector(random, 1 + random.nextInt(500), -1000, 5000);
+                CompactVector compact = CompactVector.encode(vector, quantization);
+                assertWithinBound(vector, compact, quantization);
+                assertWithinBound(vector, writeAndRead(compact), quantization);
+                assertWithinBound(vector, compact.copy(), quantization);
+            }
+        }
+    }
+
+    @Test
+    void emptyVector() throws IOException {
+        for (CompactVector.Quantization quantization : CompactVector.Quantization.values()) {
+            CompactVector compact = CompactVector.encode(new SparseVector(new int[0], new double[SparseVector.MEASURES][0]), quantization);
+            Assertions.assertEquals(0, compact.size());
+            CompactVector read = writeAndRead(compact);
+            Assertions.assertEquals(0, read.size());
+            for (int m = 0; m < SparseVector.MEASURES; m++)
+                Assertions.assertFalse(read.cursor(m).next());
+        }
+    }
+
+    @Test
+    void zeroAndNegativeWeights() {
+        int[] ids = {Integer.MIN_VALUE, -7, 0, 3, Integer.MAX_VALUE};
+        double[][] weights = {
+                {0, 0, 0, 0, 0},
+                {-1, -2, -3, -4, -5},
+                {-2.5, 0, 1e-9, 3.25, -1e6},
+                {7, 7, 7, 7, 7},
+        };
+        SparseVector vector = new SparseVector(ids, weights);
+        for (CompactVector.Quantization quantization : CompactVector.Quantization.values()) {
+            CompactVector compact = CompactVector.encode(vector, quantization);
+            assertWithinBound(vector, compact, quantization);
+            // An all-zero measure decodes exactly
+            FeatureVector.Cursor zeros = compact.cursor(0);
+            while (zeros.next())
+                Assertions.assertEquals(0.0, zeros.weight());
+        }
+    }
+
+    @Test
+    void halfPrecisionRoundTrip() {
+        for (int bits = 0; bits < 1 << 16; bits++) {
+            short half = (short) bits;
+            float value = CompactVector.halfToFloat(half);
+            // NaNs and infinities are never encoded, the encoder saturates instead
+            if (Float.isNaN(value) || Float.isInfinite(value))
+                continue;
+            Assertions.assertEquals(half, CompactVector.floatToHalf(value), "half 0x" + Integer.toHexString(bits));
+        }
+    }
+}